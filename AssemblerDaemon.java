@@ -0,0 +1,289 @@
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Resident assembler: one JVM takes requests on stdin/stdout, or on a Unix domain socket with
+// --socket path, and runs them on a worker pool. The MOT and the macro tables stay loaded and the
+// JIT stays warm between requests, instead of starting a tool per file.
+//
+// One request per line, every request is answered with one line carrying its id, in the order
+// they finish (answers that are ready together go out in one write):
+//   <id> pass1 <source> <output>                   sp_ass1 pass-1 (as --stream)
+//   <id> assemble <source> <output>                sp_ass2 pass-1 with literal and pool tables
+//   <id> define <definitions> <tables> [--binary]  sp_ass4, text tables or a binary macro library
+//   <id> expand <tables> <source> <output>         sp_ass5, text tables or a .mlb library, loaded once
+//   <id> quit                                      ends this input once the requests before it are answered
+// answer: <id> ok <milliseconds> | <id> error <message>
+//
+// sp_ass3 is not offered, its tables are static so two runs in one JVM would share them
+public class AssemblerDaemon {
+    private static final String END = new String("END"); // stops the answer writer
+
+    private final ExecutorService workers;
+    private final int backlog; // requests of one input that may be queued or running at once
+    private final Map<String, sp_ass1.OpcodeInfo> mot = sp_ass1.createMachineOpcodeTable();
+    private final ConcurrentHashMap<String, MacroTables> macroTables = new ConcurrentHashMap<>();
+
+    // Macro tables of one file, loaded again when the file changes
+    static class MacroTables {
+        final long modified;
+        final sp_ass5 tables;
+
+        MacroTables(long modified, sp_ass5 tables) {
+            this.modified = modified;
+            this.tables = tables;
+        }
+    }
+
+    AssemblerDaemon(int threads) {
+        workers = Executors.newFixedThreadPool(threads);
+        backlog = threads * 4;
+    }
+
+    // Reads requests until the input ends or asks to quit and returns when all of them are answered
+    void serve(Reader input, Writer output) throws IOException {
+        BufferedReader requests = new BufferedReader(input);
+        BlockingQueue<String> answers = new LinkedBlockingQueue<>();
+        Thread writer = new Thread(() -> writeAnswers(answers, output), "answers");
+        writer.start();
+        // The reader waits for a permit, so it does not run ahead of the workers without limit
+        Semaphore queued = new Semaphore(backlog);
+        AtomicInteger running = new AtomicInteger();
+        try {
+            String request;
+            while ((request = requests.readLine()) != null) {
+                String[] args = request.trim().split("\\s+");
+                if (args[0].isEmpty()) {
+                    continue;
+                }
+                if (args.length > 1 && args[1].equals("quit")) {
+                    break;
+                }
+                queued.acquireUninterruptibly();
+                running.incrementAndGet();
+                try {
+                    workers.execute(() -> {
+                        try {
+                            answers.add(handle(args));
+                        } finally {
+                            finished(running, queued);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    finished(running, queued);
+                    throw e;
+                }
+            }
+        } finally {
+            awaitFinished(running);
+            answers.add(END);
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static void finished(AtomicInteger running, Semaphore queued) {
+        queued.release();
+        if (running.decrementAndGet() == 0) {
+            synchronized (running) {
+                running.notifyAll();
+            }
+        }
+    }
+
+    private static void awaitFinished(AtomicInteger running) {
+        boolean interrupted = false;
+        synchronized (running) {
+            while (running.get() > 0) {
+                try {
+                    running.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Takes the next answer and every other one that is ready, and writes them with one flush
+    private static void writeAnswers(BlockingQueue<String> answers, Writer output) {
+        BufferedWriter out = new BufferedWriter(output);
+        List<String> batch = new ArrayList<>();
+        boolean open = true;
+        boolean ended = false;
+        while (!ended) {
+            try {
+                batch.add(answers.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            answers.drainTo(batch);
+            for (String answer : batch) {
+                if (answer == END) {
+                    ended = true;
+                } else if (open) {
+                    try {
+                        out.write(answer);
+                        out.newLine();
+                    } catch (IOException e) {
+                        open = false; // client went away, the requests still run
+                    }
+                }
+            }
+            batch.clear();
+            if (open) {
+                try {
+                    out.flush();
+                } catch (IOException e) {
+                    open = false;
+                }
+            }
+        }
+    }
+
+    // Every request gets an answer, also when it ends in an Error such as OutOfMemoryError
+    String handle(String[] args) {
+        long start = System.nanoTime();
+        try {
+            run(args);
+            return args[0] + " ok " + (System.nanoTime() - start) / 1_000_000;
+        } catch (Throwable e) {
+            return args[0] + " error " + (e.getMessage() != null ? e.getMessage() : e.toString()).replace('\n', ' ');
+        }
+    }
+
+    private void run(String[] args) throws IOException {
+        String command = args.length > 1 ? args[1] : "";
+        switch (command) {
+            case "pass1":
+                checkArgs(args, 4, "pass1 <source> <output>");
+                sp_ass1.streamPass1(readable(args[2]), args[3], mot);
+                break;
+            case "assemble":
+                checkArgs(args, 4, "assemble <source> <output>");
+                sp_ass2.Assembler assembler = new sp_ass2.Assembler();
+                assembler.read_file_and_process_lines(readable(args[2]));
+                assembler.write_output(args[3]);
+                break;
+            case "define":
+                checkArgs(args, 4, "define <definitions> <tables> [--binary]");
+                sp_ass4.defineMacros(readable(args[2]), args[3], args.length > 4 && args[4].equals("--binary"));
+                break;
+            case "expand":
+                checkArgs(args, 5, "expand <tables> <source> <output>");
+                sp_ass5 worker = macroTables(args[2]).newWorker();
+                worker.expandFile(readable(args[3]), args[4]);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown command '" + command + "'");
+        }
+    }
+
+    private static void checkArgs(String[] args, int count, String usage) {
+        if (args.length < count) {
+            throw new IllegalArgumentException("usage: <id> " + usage);
+        }
+    }
+
+    // The tools print an error and carry on when a file is missing, a request should fail instead
+    private static String readable(String fileName) throws NoSuchFileException {
+        if (!Files.isReadable(Paths.get(fileName))) {
+            throw new NoSuchFileException(fileName, null, "no such file");
+        }
+        return fileName;
+    }
+
+    private sp_ass5 macroTables(String tablesFile) throws IOException {
+        Path path = Paths.get(readable(tablesFile)).toAbsolutePath().normalize();
+        long modified = Files.getLastModifiedTime(path).toMillis();
+        try {
+            return macroTables.compute(path.toString(), (key, loaded) -> {
+                if (loaded != null && loaded.modified == modified) {
+                    return loaded;
+                }
+                try {
+                    return new MacroTables(modified, sp_ass5.sharedTables(key));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }).tables;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Accepts clients until the process is stopped, each connection is served on its own thread
+    void listen(Path socketFile) throws IOException {
+        Files.deleteIfExists(socketFile);
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socketFile));
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(socketFile);
+                } catch (IOException ignored) {
+                }
+            }));
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread connection = new Thread(() -> {
+                    // newReader reads the channel directly, so it does not hold up the answers being written
+                    try (client) {
+                        serve(Channels.newReader(client, StandardCharsets.UTF_8),
+                                Channels.newWriter(client, StandardCharsets.UTF_8));
+                    } catch (IOException e) {
+                        System.err.println("Connection failed: " + e.getMessage());
+                    }
+                }, "client");
+                connection.setDaemon(true);
+                connection.start();
+            }
+        }
+    }
+
+    void shutdown() {
+        workers.shutdown();
+    }
+
+    public static void main(String[] args) throws IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        String socket = null;
+        // --threads N runs up to N requests at once
+        // --socket path listens on a Unix domain socket instead of stdin/stdout
+        while (args.length > 1 && (args[0].equals("--threads") || args[0].equals("--socket"))) {
+            if (args[0].equals("--threads")) {
+                threads = Math.max(Integer.parseInt(args[1]), 1);
+            } else {
+                socket = args[1];
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+
+        AssemblerDaemon daemon = new AssemblerDaemon(threads);
+        if (socket != null) {
+            daemon.listen(Paths.get(socket));
+            return;
+        }
+        // The tools print progress to System.out, that goes to stderr so stdout only has answers
+        PrintStream answers = System.out;
+        System.setOut(System.err);
+        try {
+            daemon.serve(new InputStreamReader(System.in, StandardCharsets.UTF_8),
+                    new OutputStreamWriter(answers, StandardCharsets.UTF_8));
+        } finally {
+            daemon.shutdown();
+        }
+    }
+}
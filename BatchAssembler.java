@@ -0,0 +1,204 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// Pass-1 over a whole directory tree: every module is assembled on its own thread, with at most
+// --open modules reading or writing files at a time, and a summary is printed at the end.
+//
+//   BatchAssembler [--pass sp_ass1|sp_ass2] [--open N] [--threads N] [--ext .asm] directory
+//
+// sp_ass2 (default) writes <module>_output.txt as its batch mode does, sp_ass1 writes <module>_ic.txt.
+// What the assembler prints about a module is kept with it and printed in the summary after its name.
+// On JDK 21+ each module gets a virtual thread, so a module waiting on the disk costs no platform
+// thread. The tools build on JDK 17, which has none, so there --threads platform threads are used
+public class BatchAssembler {
+    static final String SP_ASS1_SUFFIX = "_ic.txt";
+    static final String SP_ASS2_SUFFIX = "_output.txt";
+    private static final String USAGE =
+            "Usage: BatchAssembler [--pass sp_ass1|sp_ass2] [--open N] [--threads N] [--ext .asm] directory";
+
+    private final boolean firstPass;  // sp_ass1 instead of sp_ass2
+    private final Semaphore openFiles;
+    private final Map<String, sp_ass1.OpcodeInfo> mot = sp_ass1.createMachineOpcodeTable();
+
+    // Outcome of one module for the summary
+    static class Result {
+        final Path input;
+        Path output;
+        long bytes;
+        long millis;
+        String error;
+        String messages = "";  // the assembler's diagnostics for this module
+
+        Result(Path input) {
+            this.input = input;
+        }
+    }
+
+    BatchAssembler(boolean firstPass, int openFiles) {
+        this.firstPass = firstPass;
+        this.openFiles = new Semaphore(openFiles);
+    }
+
+    // Virtual threads when the JDK has them (looked up, the code has to compile on 17), else a fixed pool
+    static ExecutorService moduleExecutor(int threads) {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(threads);
+        }
+    }
+
+    // Source files under directory in a fixed order, outputs of an earlier run are left out
+    static List<Path> findModules(Path directory, String extension) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(file -> {
+                        String name = file.getFileName().toString();
+                        return name.endsWith(extension) && !name.endsWith(SP_ASS1_SUFFIX) && !name.endsWith(SP_ASS2_SUFFIX);
+                    })
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    List<Result> assembleAll(List<Path> modules, ExecutorService executor) throws InterruptedException {
+        List<Result> results = new ArrayList<>();
+        List<Future<?>> pending = new ArrayList<>();
+        for (Path module : modules) {
+            Result result = new Result(module);
+            results.add(result);
+            pending.add(executor.submit(() -> assemble(result)));
+        }
+        for (Future<?> future : pending) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // assemble records its own errors
+            }
+        }
+        return results;
+    }
+
+    private void assemble(Result result) {
+        long start = System.nanoTime();
+        String input = result.input.toString();
+        result.output = result.input.resolveSibling(baseName(result.input.getFileName().toString())
+                + (firstPass ? SP_ASS1_SUFFIX : SP_ASS2_SUFFIX));
+        try {
+            openFiles.acquire();
+            try {
+                if (firstPass) {
+                    sp_ass1.streamPass1(input, result.output.toString(), mot);
+                } else {
+                    ByteArrayOutputStream log = new ByteArrayOutputStream();
+                    sp_ass2.Assembler assembler = new sp_ass2.Assembler();
+                    assembler.console = new PrintStream(log);
+                    try {
+                        assembler.process_file(input);
+                        assembler.write_output(result.output.toString());
+                    } finally {
+                        assembler.console.flush();
+                        result.messages = log.toString();
+                    }
+                }
+                result.bytes = Files.size(result.output);
+            } finally {
+                openFiles.release();
+            }
+        } catch (InterruptedException e) {
+            result.error = "interrupted";
+            Thread.currentThread().interrupt();
+        } catch (Throwable e) {
+            // also an Error such as StackOverflowError, the module fails and the others carry on
+            result.error = e.toString();
+        }
+        result.millis = (System.nanoTime() - start) / 1_000_000;
+    }
+
+    private static String baseName(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        return dot > 0 ? fileName.substring(0, dot) : fileName;
+    }
+
+    static void printSummary(List<Result> results, long wallMillis) {
+        int failed = 0;
+        long bytes = 0;
+        long moduleMillis = 0;
+        for (Result result : results) {
+            for (String message : result.messages.split("\\R")) {
+                if (!message.isEmpty()) {
+                    System.out.println(result.input + ": " + message);
+                }
+            }
+            if (result.error != null) {
+                failed++;
+                System.out.println(result.input + ": error: " + result.error);
+            } else {
+                bytes += result.bytes;
+                System.out.println(result.input + " -> " + result.output + " (" + result.bytes + " bytes, " + result.millis + " ms)");
+            }
+            moduleMillis += result.millis;
+        }
+        System.out.println(results.size() + " modules, " + (results.size() - failed) + " assembled, " + failed + " failed, "
+                + bytes + " bytes written");
+        System.out.println("Wall time " + wallMillis + " ms, time in modules " + moduleMillis + " ms");
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean firstPass = false;
+        int open = 64;
+        int threads = Runtime.getRuntime().availableProcessors() * 2;
+        String extension = ".asm";
+        // --pass sp_ass1 runs sp_ass1's pass-1 instead of sp_ass2's
+        // --open N limits the modules that have files open at the same time
+        // --threads N sets the pool size when there are no virtual threads
+        // --ext .txt picks the source files by extension
+        while (args.length > 1 && args[0].startsWith("--")) {
+            switch (args[0]) {
+                case "--pass":
+                    if (!args[1].equals("sp_ass1") && !args[1].equals("sp_ass2")) {
+                        System.err.println("Unknown pass " + args[1]);
+                        System.err.println(USAGE);
+                        return;
+                    }
+                    firstPass = args[1].equals("sp_ass1");
+                    break;
+                case "--open":
+                    open = Math.max(Integer.parseInt(args[1]), 1);
+                    break;
+                case "--threads":
+                    threads = Math.max(Integer.parseInt(args[1]), 1);
+                    break;
+                case "--ext":
+                    extension = args[1];
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[0]);
+                    return;
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length == 0) {
+            System.err.println(USAGE);
+            return;
+        }
+
+        long start = System.nanoTime();
+        List<Path> modules = findModules(Paths.get(args[0]), extension);
+        BatchAssembler batch = new BatchAssembler(firstPass, open);
+        ExecutorService executor = moduleExecutor(threads);
+        List<Result> results;
+        try {
+            results = batch.assembleAll(modules, executor);
+        } finally {
+            executor.shutdown();
+        }
+        printSummary(results, (System.nanoTime() - start) / 1_000_000);
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+
+// Binary intermediate code file shared by pass-1 (sp_ass1) and pass-2 (sp_ass3)
+//
+// Layout (big endian):
+//   header   : magic, version, record count, symbol count (ints), string pool offset (long)
+//   records  : RECORD_SIZE bytes each -> lc, class, kind1, kind2, kind3, opcode, value1, value2, value3
+//   symbols  : SYMBOL_SIZE bytes each -> name index, lc
+//   pool     : count, then (length as unsigned short, UTF-8 bytes) for every name
+public class ICFile {
+    static final int MAGIC = 0x49433031; // "IC01"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 24;
+    static final int SYMBOL_SIZE = 8;
+    static final int MAX_NAME_BYTES = 0xFFFF; // pool lengths are unsigned shorts
+
+    // Statement classes
+    static final byte CLS_UNKNOWN = 0;
+    static final byte CLS_AD = 1;
+    static final byte CLS_IS = 2;
+    static final byte CLS_DC = 3;
+    static final byte CLS_DS = 4;
+    static final byte CLS_R = 5;
+
+    // Operand kinds
+    static final byte OP_NONE = 0;
+    static final byte OP_C = 1;       // numeric constant, value is the number
+    static final byte OP_ST = 2;      // symbol, value is the name index in the pool
+    static final byte OP_C_TEXT = 3;  // non numeric constant, value is the text index in the pool
+
+    static final String[] CLASS_NAMES = {"??", "AD", "IS", "DC", "DS", "R"};
+
+    static byte classOf(String type) {
+        for (byte i = 1; i < CLASS_NAMES.length; i++) {
+            if (CLASS_NAMES[i].equals(type)) {
+                return i;
+            }
+        }
+        return CLS_UNKNOWN;
+    }
+
+    static class Writer implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        private final SymbolTable pool = new SymbolTable(); // entry i is pool name i
+        private int recordCount = 0;
+
+        Writer(String fileName) throws IOException {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer.put(new byte[HEADER_SIZE]); // patched in close()
+        }
+
+        int intern(String name) {
+            int index = pool.find(name);
+            return index >= 0 ? index : pool.add(name, 0);
+        }
+
+        // kinds and values hold up to three operands, unused slots are OP_NONE
+        void addRecord(int lc, byte cls, int opcode, byte[] kinds, int[] values) throws IOException {
+            ensureSpace(RECORD_SIZE);
+            buffer.putInt(lc);
+            buffer.put(cls);
+            for (int i = 0; i < 3; i++) {
+                buffer.put(kinds[i]);
+            }
+            buffer.putInt(opcode);
+            for (int i = 0; i < 3; i++) {
+                buffer.putInt(values[i]);
+            }
+            recordCount++;
+        }
+
+        // Writes the symbol table and string pool, then fills in the header
+        void finish(SymbolTable symbolTable) throws IOException {
+            for (int entry = 0; entry < symbolTable.size(); entry++) {
+                int nameIndex = intern(symbolTable.name(entry));
+                ensureSpace(SYMBOL_SIZE);
+                buffer.putInt(nameIndex);
+                buffer.putInt(symbolTable.address(entry));
+            }
+            flush();
+            long poolOffset = channel.position();
+
+            ensureSpace(4);
+            buffer.putInt(pool.size());
+            for (int i = 0; i < pool.size(); i++) {
+                byte[] bytes = pool.name(i).getBytes(StandardCharsets.UTF_8);
+                if (bytes.length > MAX_NAME_BYTES) {
+                    throw new IOException("Name or constant longer than " + MAX_NAME_BYTES
+                            + " bytes cannot be stored in an intermediate code file: "
+                            + pool.name(i).substring(0, 32) + "...");
+                }
+                ensureSpace(2 + bytes.length);
+                buffer.putShort((short) bytes.length);
+                buffer.put(bytes);
+            }
+            flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putInt(recordCount).putInt(symbolTable.size()).putLong(poolOffset);
+            header.flip();
+            channel.write(header, 0);
+        }
+
+        private void ensureSpace(int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // Reads records in place from the memory mapped file, only the string pool is decoded.
+    // Records and symbols are mapped in windows of whole entries, so files over 2 GB can be read.
+    static class Reader {
+        static final int RECORDS_PER_WINDOW = (1 << 30) / RECORD_SIZE;
+        static final int SYMBOLS_PER_WINDOW = (1 << 30) / SYMBOL_SIZE;
+
+        private final MappedByteBuffer[] records;
+        private final MappedByteBuffer[] symbols;
+        private final int recordCount;
+        private final int symbolCount;
+        private final String[] names;
+
+        Reader(String fileName) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                long size = channel.size();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining() && channel.read(header, header.position()) > 0) {
+                }
+                if (header.hasRemaining() || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IOException("Not an intermediate code file: " + fileName);
+                }
+                recordCount = header.getInt(8);
+                symbolCount = header.getInt(12);
+                long poolOffset = header.getLong(16);
+                long symbolOffset = HEADER_SIZE + (long) recordCount * RECORD_SIZE;
+                if (recordCount < 0 || symbolCount < 0
+                        || symbolOffset + (long) symbolCount * SYMBOL_SIZE > poolOffset || poolOffset + 4 > size) {
+                    throw new IOException("Truncated intermediate code file: " + fileName);
+                }
+                records = mapWindows(channel, HEADER_SIZE, recordCount, RECORDS_PER_WINDOW, RECORD_SIZE);
+                symbols = mapWindows(channel, symbolOffset, symbolCount, SYMBOLS_PER_WINDOW, SYMBOL_SIZE);
+
+                DataInputStream pool = new DataInputStream(new BufferedInputStream(
+                        Channels.newInputStream(channel.position(poolOffset)), 64 * 1024));
+                names = new String[pool.readInt()];
+                for (int i = 0; i < names.length; i++) {
+                    byte[] bytes = new byte[pool.readUnsignedShort()];
+                    pool.readFully(bytes);
+                    names[i] = new String(bytes, StandardCharsets.UTF_8);
+                }
+            } catch (EOFException e) {
+                throw new IOException("Truncated intermediate code file: " + fileName);
+            }
+        }
+
+        private static MappedByteBuffer[] mapWindows(FileChannel channel, long offset, int count, int perWindow,
+                int entrySize) throws IOException {
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int) (((long) count + perWindow - 1) / perWindow)];
+            for (int w = 0; w < windows.length; w++) {
+                int entries = Math.min(perWindow, count - w * perWindow);
+                windows[w] = channel.map(FileChannel.MapMode.READ_ONLY,
+                        offset + (long) w * perWindow * entrySize, (long) entries * entrySize);
+            }
+            return windows;
+        }
+
+        int recordCount() { return recordCount; }
+        int symbolCount() { return symbolCount; }
+
+        // Window and offset in it of record i and symbol j
+        private ByteBuffer recordWindow(int i) { return records[i / RECORDS_PER_WINDOW]; }
+        private int record(int i) { return i % RECORDS_PER_WINDOW * RECORD_SIZE; }
+        private ByteBuffer symbolWindow(int j) { return symbols[j / SYMBOLS_PER_WINDOW]; }
+        private int symbol(int j) { return j % SYMBOLS_PER_WINDOW * SYMBOL_SIZE; }
+
+        int lc(int i) { return recordWindow(i).getInt(record(i)); }
+        byte cls(int i) { return recordWindow(i).get(record(i) + 4); }
+        byte kind(int i, int operand) { return recordWindow(i).get(record(i) + 5 + operand); }
+        int opcode(int i) { return recordWindow(i).getInt(record(i) + 8); }
+        int value(int i, int operand) { return recordWindow(i).getInt(record(i) + 12 + 4 * operand); }
+
+        String symbolName(int j) { return names[symbolWindow(j).getInt(symbol(j))]; }
+        int symbolLc(int j) { return symbolWindow(j).getInt(symbol(j) + 4); }
+        String name(int index) { return names[index]; }
+
+        // The symbol records as a table, for looking symbols up by name
+        SymbolTable symbols() {
+            SymbolTable symbols = new SymbolTable();
+            for (int j = 0; j < symbolCount; j++) {
+                symbols.put(symbolName(j), symbolLc(j));
+            }
+            return symbols;
+        }
+
+        // Text of operand as pass-1 would have printed it, e.g. "(ST,NUM)"
+        String operandText(int i, int operand) {
+            int value = value(i, operand);
+            switch (kind(i, operand)) {
+                case OP_C: return "(C," + value + ")";
+                case OP_C_TEXT: return "(C," + names[value] + ")";
+                case OP_ST: return "(ST," + names[value] + ")";
+                default: return "";
+            }
+        }
+
+        // Debug view, same form as the text output of pass-1
+        String recordText(int i) {
+            StringBuilder sb = new StringBuilder("LC: ").append(lc(i)).append(" ");
+            if (cls(i) == CLS_UNKNOWN) {
+                // two lines, as sp_ass1 writes an unknown opcode in the text IC
+                return sb.append("Machine Opcode: Unknown\nIntermediate Code: Unknown").toString();
+            }
+            sb.append("(").append(CLASS_NAMES[cls(i)]).append(",").append(opcode(i)).append(") ");
+            for (int k = 0; k < 3 && kind(i, k) != OP_NONE; k++) {
+                if (k > 0) {
+                    sb.append(" ");
+                }
+                sb.append(operandText(i, k));
+            }
+            return sb.toString();
+        }
+
+        // Line of a DC record under "Declarative Statements:", as pass-1 writes it
+        String declarationText(int i) {
+            String operand;
+            switch (kind(i, 0)) {
+                case OP_C: operand = String.valueOf(value(i, 0)); break;
+                case OP_C_TEXT: operand = names[value(i, 0)]; break;
+                default: operand = "null";
+            }
+            return "LC: " + lc(i) + " Instruction: DC Operand1: " + operand;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+// Binary macro library written by MacroProcessor (sp_ass4) and used in place by sp_ass5
+//
+// Layout (big endian ints):
+//   header  : magic, version, then count and offset of every section below
+//   MNT     : MNT_SIZE bytes per macro -> name, posParams, keyParams, expVars, mdtPtr, kpdtPtr, sstPtr,
+//             PNTAB start/count, EVNTAB start/count, SSNTAB start/count
+//   MDT     : one string per line
+//   PNTAB, EVNTAB, SSNTAB : strings of all macros one after the other, the MNT record has the range
+//   KPDTAB  : name, default value
+//   SSTAB   : name, location in MDT
+//   HASH    : open addressing table of macro names (String.hashCode, linear probing), macro index + 1
+//   POOL    : every string as (length, UTF-8 bytes), the tables above hold offsets into it
+public class MacroLibrary {
+    static final int MAGIC = 0x4D4C4231; // "MLB1"
+    static final int VERSION = 1;
+    static final int MNT_SIZE = 13 * 4;
+
+    private static final int SECTIONS = 9;
+    private static final int MNT = 0, MDT = 1, PNTAB = 2, EVNTAB = 3, SSNTAB = 4, KPDTAB = 5, SSTAB = 6, HASH = 7, POOL = 8;
+    private static final int HEADER_SIZE = 8 + SECTIONS * 8;
+
+    // Takes the tables of MacroProcessor entry by entry, either a Writer or sp_ass5 directly
+    interface Sink {
+        void addMacro(String name, int posParams, int keyParams, int expansionVars, int mdtPtr, int kpdtPtr, int sstPtr,
+                      List<String> params, List<String> expansionVarNames, List<String> sequencingSymbols);
+
+        void addMdtLine(String line);
+
+        void addKeyword(String paramName, String defaultValue);
+
+        void addSequencingSymbol(String symbolName, int locationInMDT);
+    }
+
+    static class Writer implements Sink {
+        private final Map<String, Integer> pool = new HashMap<>();
+        private final ByteArrayBuilder poolBytes = new ByteArrayBuilder();
+        private final List<int[]> mnt = new ArrayList<>();
+        private final List<String> macroNames = new ArrayList<>();
+        private final IntList mdt = new IntList();
+        private final IntList pntab = new IntList();
+        private final IntList evntab = new IntList();
+        private final IntList ssntab = new IntList();
+        private final IntList kpdtab = new IntList();
+        private final IntList sstab = new IntList();
+
+        private int ref(String s) {
+            Integer offset = pool.get(s);
+            if (offset == null) {
+                offset = poolBytes.size();
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                poolBytes.putInt(bytes.length);
+                poolBytes.put(bytes);
+                pool.put(s, offset);
+            }
+            return offset;
+        }
+
+        public void addMacro(String name, int posParams, int keyParams, int expansionVars, int mdtPtr, int kpdtPtr, int sstPtr,
+                      List<String> params, List<String> expansionVarNames, List<String> sequencingSymbols) {
+            int[] record = {ref(name), posParams, keyParams, expansionVars, mdtPtr, kpdtPtr, sstPtr,
+                    pntab.size(), params.size(), evntab.size(), expansionVarNames.size(), ssntab.size(), sequencingSymbols.size()};
+            for (String p : params) {
+                pntab.add(ref(p));
+            }
+            for (String v : expansionVarNames) {
+                evntab.add(ref(v));
+            }
+            for (String s : sequencingSymbols) {
+                ssntab.add(ref(s));
+            }
+            mnt.add(record);
+            macroNames.add(name);
+        }
+
+        public void addMdtLine(String line) {
+            mdt.add(ref(line));
+        }
+
+        public void addKeyword(String paramName, String defaultValue) {
+            kpdtab.add(ref(paramName));
+            kpdtab.add(ref(defaultValue));
+        }
+
+        public void addSequencingSymbol(String symbolName, int locationInMDT) {
+            sstab.add(ref(symbolName));
+            sstab.add(locationInMDT);
+        }
+
+        void write(String fileName) throws IOException {
+            int hashSize = Integer.highestOneBit(Math.max(macroNames.size(), 1) * 2 - 1) * 2;
+            int[] hash = new int[hashSize];
+            for (int i = 0; i < macroNames.size(); i++) {
+                int slot = macroNames.get(i).hashCode() & (hashSize - 1);
+                boolean defined = false;
+                while (hash[slot] != 0) {
+                    if (macroNames.get(hash[slot] - 1).equals(macroNames.get(i))) {
+                        defined = true; // first definition wins, as in the text tables
+                        break;
+                    }
+                    slot = (slot + 1) & (hashSize - 1);
+                }
+                if (!defined) {
+                    hash[slot] = i + 1;
+                }
+            }
+
+            int[] counts = {mnt.size(), mdt.size(), pntab.size(), evntab.size(), ssntab.size(),
+                    kpdtab.size() / 2, sstab.size() / 2, hashSize, poolBytes.size()};
+            int[] sizes = {mnt.size() * MNT_SIZE, mdt.size() * 4, pntab.size() * 4, evntab.size() * 4, ssntab.size() * 4,
+                    kpdtab.size() * 4, sstab.size() * 4, hashSize * 4, poolBytes.size()};
+            int total = HEADER_SIZE;
+            for (int size : sizes) {
+                total += size;
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(total);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            int offset = HEADER_SIZE;
+            for (int i = 0; i < SECTIONS; i++) {
+                buffer.putInt(counts[i]).putInt(offset);
+                offset += sizes[i];
+            }
+            for (int[] record : mnt) {
+                for (int value : record) {
+                    buffer.putInt(value);
+                }
+            }
+            for (IntList list : Arrays.asList(mdt, pntab, evntab, ssntab, kpdtab, sstab)) {
+                for (int i = 0; i < list.size(); i++) {
+                    buffer.putInt(list.get(i));
+                }
+            }
+            for (int value : hash) {
+                buffer.putInt(value);
+            }
+            buffer.put(poolBytes.array(), 0, poolBytes.size());
+            buffer.flip();
+
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+
+    // Reads the library in place from the mapped file, strings are decoded only when asked for
+    static class Reader {
+        private final MappedByteBuffer map;
+        private final int[] count = new int[SECTIONS];
+        private final int[] offset = new int[SECTIONS];
+
+        Reader(String fileName) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (map.getInt(0) != MAGIC) {
+                throw new IOException("Not a macro library: " + fileName);
+            }
+            if (map.getInt(4) != VERSION) {
+                throw new IOException("Unsupported macro library version " + map.getInt(4) + ": " + fileName);
+            }
+            for (int i = 0; i < SECTIONS; i++) {
+                count[i] = map.getInt(8 + i * 8);
+                offset[i] = map.getInt(12 + i * 8);
+            }
+        }
+
+        int macroCount() { return count[MNT]; }
+        int mdtCount() { return count[MDT]; }
+        int kpdtabCount() { return count[KPDTAB]; }
+        int sstabCount() { return count[SSTAB]; }
+
+        // Index of the macro called name, or -1
+        int find(String name) {
+            int hashSize = count[HASH];
+            if (hashSize == 0) {
+                return -1;
+            }
+            byte[] key = name.getBytes(StandardCharsets.UTF_8);
+            int slot = name.hashCode() & (hashSize - 1);
+            int entry;
+            while ((entry = map.getInt(offset[HASH] + slot * 4)) != 0) {
+                if (stringEquals(field(entry - 1, 0), key)) {
+                    return entry - 1;
+                }
+                slot = (slot + 1) & (hashSize - 1);
+            }
+            return -1;
+        }
+
+        private int field(int macro, int field) {
+            return map.getInt(offset[MNT] + macro * MNT_SIZE + field * 4);
+        }
+
+        String name(int macro) { return string(field(macro, 0)); }
+        int posParams(int macro) { return field(macro, 1); }
+        int keyParams(int macro) { return field(macro, 2); }
+        int expansionVars(int macro) { return field(macro, 3); }
+        int mdtPtr(int macro) { return field(macro, 4); }
+        int kpdtPtr(int macro) { return field(macro, 5); }
+        int sstPtr(int macro) { return field(macro, 6); }
+        List<String> pntab(int macro) { return strings(PNTAB, field(macro, 7), field(macro, 8)); }
+        List<String> evntab(int macro) { return strings(EVNTAB, field(macro, 9), field(macro, 10)); }
+        List<String> ssntab(int macro) { return strings(SSNTAB, field(macro, 11), field(macro, 12)); }
+
+        String mdtLine(int i) { return string(map.getInt(offset[MDT] + i * 4)); }
+        String kpdtName(int i) { return string(map.getInt(offset[KPDTAB] + i * 8)); }
+        String kpdtDefault(int i) { return string(map.getInt(offset[KPDTAB] + i * 8 + 4)); }
+        String sstName(int i) { return string(map.getInt(offset[SSTAB] + i * 8)); }
+        int sstLocation(int i) { return map.getInt(offset[SSTAB] + i * 8 + 4); }
+
+        private List<String> strings(int section, int start, int length) {
+            List<String> list = new ArrayList<>(length);
+            for (int i = start; i < start + length; i++) {
+                list.add(string(map.getInt(offset[section] + i * 4)));
+            }
+            return list;
+        }
+
+        private String string(int ref) {
+            int pos = offset[POOL] + ref;
+            byte[] bytes = new byte[map.getInt(pos)];
+            map.get(pos + 4, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        private boolean stringEquals(int ref, byte[] key) {
+            int pos = offset[POOL] + ref;
+            if (map.getInt(pos) != key.length) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (map.get(pos + 4 + i) != key[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    // Growable int array, the writer keeps its tables in these instead of boxed lists
+    static class IntList {
+        private int[] data = new int[64];
+        private int size;
+
+        void add(int value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, size * 2);
+            }
+            data[size++] = value;
+        }
+
+        int get(int i) { return data[i]; }
+        int size() { return size; }
+    }
+
+    static class ByteArrayBuilder {
+        private byte[] data = new byte[1024];
+        private int size;
+
+        void putInt(int value) {
+            ensure(4);
+            data[size++] = (byte) (value >>> 24);
+            data[size++] = (byte) (value >>> 16);
+            data[size++] = (byte) (value >>> 8);
+            data[size++] = (byte) value;
+        }
+
+        void put(byte[] bytes) {
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, data, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensure(int bytes) {
+            if (size + bytes > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, size + bytes));
+            }
+        }
+
+        byte[] array() { return data; }
+        int size() { return size; }
+    }
+}
@@ -0,0 +1,256 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Output shared by all the tools for their tables. Text and numbers are encoded straight into
+// reused byte blocks, no String is made per record. Full blocks are kept until FLUSH_BLOCKS of
+// them are waiting and then go out in one gathering write, so a small dump is a single write.
+// Blocks are allocated as the output first needs them, a small dump only ever has one.
+// ASCII is copied byte by byte, any other char is encoded with the default charset as FileWriter does
+public class OutputEncoder implements Closeable {
+    static final int BLOCK_SIZE = 64 * 1024;
+    static final int FLUSH_BLOCKS = 16;
+
+    private final FileChannel channel;  // file output, else stream
+    private final OutputStream stream;
+    private final String lineSeparator;
+    private final byte[][] blocks = new byte[FLUSH_BLOCKS][];          // null until first used
+    private final ByteBuffer[] buffers = new ByteBuffer[FLUSH_BLOCKS];
+    private int full;                   // blocks waiting to be written
+    private byte[] block;
+    private int count;                  // bytes used in block
+    private final ArrayDeque<Future<?>> blockWrites = new ArrayDeque<>(); // putBlock writes not yet waited for
+    private final byte[] digits = new byte[11];
+
+    private OutputEncoder(FileChannel channel, OutputStream stream, String lineSeparator) {
+        this.channel = channel;
+        this.stream = stream;
+        this.lineSeparator = lineSeparator;
+        block = allocateBlock(0);
+    }
+
+    private byte[] allocateBlock(int i) {
+        blocks[i] = new byte[BLOCK_SIZE];
+        buffers[i] = ByteBuffer.wrap(blocks[i]);
+        return blocks[i];
+    }
+
+    // Truncates or creates fileName, lines end with '\n' like the files written so far
+    public static OutputEncoder open(String fileName) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        return new OutputEncoder(channel, null, "\n");
+    }
+
+    // Writes to the stream, e.g. System.out, lines end as with println. close() flushes but leaves it open
+    public static OutputEncoder to(OutputStream stream) {
+        return new OutputEncoder(null, stream, System.lineSeparator());
+    }
+
+    public OutputEncoder put(char c) throws IOException {
+        if (c < 0x80) {
+            if (count == BLOCK_SIZE) {
+                nextBlock();
+            }
+            block[count++] = (byte) c;
+            return this;
+        }
+        return putEncoded(CharBuffer.wrap(new char[]{c}));
+    }
+
+    public OutputEncoder put(CharSequence text) throws IOException {
+        return put(text, 0, text.length());
+    }
+
+    public OutputEncoder put(CharSequence text, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c >= 0x80) {
+                return putEncoded(CharBuffer.wrap(text, i, end));
+            }
+            if (count == BLOCK_SIZE) {
+                nextBlock();
+            }
+            block[count++] = (byte) c;
+        }
+        return this;
+    }
+
+    // Decimal digits of value, as String.valueOf(int)
+    public OutputEncoder put(int value) throws IOException {
+        long rest = Math.abs((long) value);
+        int pos = digits.length;
+        do {
+            digits[--pos] = (byte) ('0' + rest % 10);
+            rest /= 10;
+        } while (rest != 0);
+        if (value < 0) {
+            digits[--pos] = '-';
+        }
+        return putBytes(digits, pos, digits.length - pos);
+    }
+
+    public OutputEncoder newLine() throws IOException {
+        return put(lineSeparator);
+    }
+
+    public String lineSeparator() {
+        return lineSeparator;
+    }
+
+    // Bytes of text as put() writes them, for blocks encoded on other threads (see putBlocks)
+    public static byte[] encode(CharSequence text) {
+        int length = text.length();
+        int ascii = 0;
+        while (ascii < length && text.charAt(ascii) < 0x80) {
+            ascii++;
+        }
+        ByteBuffer rest = ascii < length ? Charset.defaultCharset().encode(CharBuffer.wrap(text, ascii, length)) : null;
+        byte[] bytes = new byte[ascii + (rest != null ? rest.remaining() : 0)];
+        for (int i = 0; i < ascii; i++) {
+            bytes[i] = (byte) text.charAt(i);
+        }
+        if (rest != null) {
+            rest.get(bytes, ascii, rest.remaining());
+        }
+        return bytes;
+    }
+
+    // Writes a block made by encode() after what was put so far. On a file the block gets its offset
+    // now and executor writes it there, so it goes out while the next blocks are still being made.
+    // flush() waits for these writes
+    public void putBlock(byte[] block, ExecutorService executor) throws IOException {
+        if (channel == null) {
+            putBytes(block, 0, block.length);
+            return;
+        }
+        writeBuffered();
+        long offset = channel.position();
+        channel.position(offset + block.length);
+        if (blockWrites.size() == FLUSH_BLOCKS) {
+            awaitWrite(blockWrites.poll());
+        }
+        blockWrites.add(executor.submit(() -> writeAt(block, offset)));
+    }
+
+    private void awaitWrite(Future<?> write) throws IOException {
+        try {
+            write.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+    }
+
+    private void writeAt(byte[] block, long offset) {
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer, offset + buffer.position());
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private OutputEncoder putEncoded(CharBuffer chars) throws IOException {
+        ByteBuffer bytes = Charset.defaultCharset().encode(chars);
+        byte[] encoded = new byte[bytes.remaining()];
+        bytes.get(encoded);
+        return putBytes(encoded, 0, encoded.length);
+    }
+
+    private OutputEncoder putBytes(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (count == BLOCK_SIZE) {
+                nextBlock();
+            }
+            int n = Math.min(length, BLOCK_SIZE - count);
+            System.arraycopy(bytes, offset, block, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+        return this;
+    }
+
+    private void nextBlock() throws IOException {
+        full++;
+        if (full == FLUSH_BLOCKS) {
+            write();
+        }
+        block = blocks[full] != null ? blocks[full] : allocateBlock(full);
+        count = 0;
+    }
+
+    // Writes the waiting blocks and the used part of the current one, then starts again at the first block
+    public void flush() throws IOException {
+        writeBuffered();
+        while (!blockWrites.isEmpty()) {
+            awaitWrite(blockWrites.poll());
+        }
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    private void writeBuffered() throws IOException {
+        if (count > 0 || full > 0) {
+            full++; // the current block goes out too
+            write();
+            block = blocks[0];
+            count = 0;
+        }
+    }
+
+    private void write() throws IOException {
+        for (int i = 0; i < full; i++) {
+            buffers[i].clear();
+            buffers[i].limit(blocks[i] == block ? count : BLOCK_SIZE);
+        }
+        if (channel != null) {
+            ByteBuffer[] pending = full == FLUSH_BLOCKS ? buffers : Arrays.copyOf(buffers, full);
+            long left = 0;
+            for (ByteBuffer buffer : pending) {
+                left += buffer.remaining();
+            }
+            while (left > 0) {
+                left -= channel.write(pending);
+            }
+        } else {
+            for (int i = 0; i < full; i++) {
+                stream.write(blocks[i], 0, buffers[i].limit());
+            }
+        }
+        full = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+// Source file shared by all the tools. The file is mapped read-only and lines are ranges of it,
+// nothing is copied until a tool keeps a token as a String.
+// ASCII files are read straight from the mapped bytes, any other file is decoded once with the
+// default charset, the same as FileReader would. A file too large for that (a mapping ends at 2 GB)
+// is read with stream(), one line at a time through a buffer
+public class SourceFile implements CharSequence {
+    private final ByteBuffer bytes;  // mapped file when it is ASCII, else null
+    private final CharSequence text; // used when bytes is null
+    private final int length;
+
+    public SourceFile(CharSequence text) {
+        this.bytes = null;
+        this.text = text;
+        this.length = text.length();
+    }
+
+    private SourceFile(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.text = null;
+        this.length = bytes.limit();
+    }
+
+    public static SourceFile open(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large to map: " + fileName);
+            }
+            ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (isAscii(map)) {
+                return new SourceFile(map);
+            }
+            return new SourceFile(Charset.defaultCharset().decode(map));
+        }
+    }
+
+    // Lines of any size of file for a pass that reads each line once, decoded as open() does
+    public static LineReader stream(String fileName) throws IOException {
+        return new LineReader(new InputStreamReader(Files.newInputStream(Paths.get(fileName)), Charset.defaultCharset()));
+    }
+
+    private static boolean isAscii(ByteBuffer map) {
+        int limit = map.limit();
+        int i = 0;
+        for (; i + 8 <= limit; i += 8) {
+            if ((map.getLong(i) & 0x8080808080808080L) != 0) {
+                return false;
+            }
+        }
+        for (; i < limit; i++) {
+            if (map.get(i) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        return bytes != null ? (char) bytes.get(index) : text.charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return text(start, end);
+    }
+
+    @Override
+    public String toString() {
+        return text(0, length);
+    }
+
+    // The chars in [start, end) as a String, the only place a copy is made
+    public String text(int start, int end) {
+        if (bytes == null) {
+            return text.subSequence(start, end).toString();
+        }
+        byte[] chunk = new byte[end - start];
+        bytes.get(start, chunk);
+        return new String(chunk, StandardCharsets.ISO_8859_1);
+    }
+
+    public Line lines() {
+        return new Line(0, length);
+    }
+
+    // Lines starting in [from, to), from must be the start of a line
+    public Line lines(int from, int to) {
+        return new Line(from, to);
+    }
+
+    // Position of c in chars[from, to), or -1
+    public static int indexOf(CharSequence chars, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (chars.charAt(i) == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Cursor over the lines of the file, lines end at \n, \r or \r\n as with readLine. The cursor is
+    // also the current line as a CharSequence, so parsers written for a String line read it in place
+    public class Line implements CharSequence {
+        private int start;  // current line in the file
+        private int end;
+        private int next;   // start of the next line
+        private final int limit;
+        private char[] scratch;
+
+        private Line(int from, int limit) {
+            this.next = from;
+            this.limit = limit;
+        }
+
+        public boolean next() {
+            if (next >= limit) {
+                return false;
+            }
+            start = next;
+            int i = start;
+            char c = 0;
+            while (i < length && (c = SourceFile.this.charAt(i)) != '\n' && c != '\r') {
+                i++;
+            }
+            end = i;
+            if (i < length && c == '\r' && i + 1 < length && SourceFile.this.charAt(i + 1) == '\n') {
+                i++;
+            }
+            next = Math.min(i + 1, length);
+            return true;
+        }
+
+        // Points the cursor at any range of the file, e.g. a line kept from an earlier pass
+        public void set(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        // Leaves out leading and trailing chars <= ' ', as String.trim does
+        public void trim() {
+            while (start < end && SourceFile.this.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && SourceFile.this.charAt(end - 1) <= ' ') {
+                end--;
+            }
+        }
+
+        public int start() {
+            return start;
+        }
+
+        public int end() {
+            return end;
+        }
+
+        // Start of the line after this one
+        public int nextStart() {
+            return next;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return SourceFile.this.charAt(start + index);
+        }
+
+        @Override
+        public String subSequence(int from, int to) {
+            return text(start + from, start + to);
+        }
+
+        @Override
+        public String toString() {
+            return text(start, end);
+        }
+
+        public boolean contentEquals(String s) {
+            if (s.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                if (charAt(i) != s.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean equalsIgnoreCase(String s) {
+            if (s.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < s.length(); i++) {
+                char a = charAt(i);
+                char b = s.charAt(i);
+                if (a != b && Character.toUpperCase(a) != Character.toUpperCase(b)
+                        && Character.toLowerCase(Character.toUpperCase(a)) != Character.toLowerCase(Character.toUpperCase(b))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int indexOf(char c, int from) {
+            int i = SourceFile.indexOf(SourceFile.this, c, start + from, end);
+            return i < 0 ? -1 : i - start;
+        }
+
+        // Writes line[from, to) in blocks, without making a String
+        public void writeTo(Writer out, int from, int to) throws IOException {
+            if (scratch == null) {
+                scratch = new char[1024];
+            }
+            for (int i = start + from; i < start + to; ) {
+                int n = Math.min(scratch.length, start + to - i);
+                for (int k = 0; k < n; k++) {
+                    scratch[k] = SourceFile.this.charAt(i + k);
+                }
+                out.write(scratch, 0, n);
+                i += n;
+            }
+        }
+
+        public void writeTo(Writer out) throws IOException {
+            writeTo(out, 0, end - start);
+        }
+    }
+
+    // Cursor over the lines of a stream, lines end as with Line. The current line is a range of a buffer
+    // that holds at least one line, only what has not been read yet is kept when it is filled again
+    public static class LineReader implements CharSequence, Closeable {
+        private final Reader in;
+        private char[] buffer = new char[64 * 1024];
+        private int filled;     // chars in buffer
+        private boolean eof;
+        private int start;      // current line in buffer
+        private int end;
+        private int next;       // start of the next line
+
+        private LineReader(Reader in) {
+            this.in = in;
+        }
+
+        public boolean next() throws IOException {
+            int i = next;
+            while (true) {
+                while (i < filled && buffer[i] != '\n' && buffer[i] != '\r') {
+                    i++;
+                }
+                // a '\r' at the end of the buffer may still be followed by '\n'
+                if (i < filled - 1 || (i < filled && buffer[i] == '\n') || eof) {
+                    break;
+                }
+                i -= fill();
+            }
+            if (next == filled) {
+                return false;
+            }
+            start = next;
+            end = i;
+            if (i + 1 < filled && buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                i++;
+            }
+            next = Math.min(i + 1, filled);
+            return true;
+        }
+
+        // Moves the unread chars to the front, grows the buffer if they fill it and reads more after them.
+        // Returns how far the chars moved
+        private int fill() throws IOException {
+            int moved = next;
+            filled -= moved;
+            System.arraycopy(buffer, moved, buffer, 0, filled);
+            next = 0;
+            if (filled == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int n = in.read(buffer, filled, buffer.length - filled);
+            if (n < 0) {
+                eof = true;
+            } else {
+                filled += n;
+            }
+            return moved;
+        }
+
+        @Override
+        public int length() {
+            return end - start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            return buffer[start + index];
+        }
+
+        @Override
+        public String subSequence(int from, int to) {
+            return new String(buffer, start + from, to - from);
+        }
+
+        @Override
+        public String toString() {
+            return new String(buffer, start, end - start);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
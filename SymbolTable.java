@@ -0,0 +1,231 @@
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// Symbol table shared by pass-1 and pass-2. Names are stored one after the other in a byte arena,
+// one byte per char when every char fits (as String does), and addresses in an int array, so a
+// symbol is a few bytes and no object. The arena can be off-heap for programs with millions of labels.
+//
+// Entries keep the order they were added in and can repeat a name, lookups go through an open
+// addressing index (String.hashCode, linear probing) and find the first entry with the name.
+// Tables are written out in entry order, for a table filled with put() that is the order in which
+// the names were first defined
+public class SymbolTable {
+    private static final int WIDE = 0x80000000; // length flag: two bytes per char
+
+    private final boolean offHeap;
+    private ByteBuffer arena;
+    private int arenaSize;
+    private int[] nameOffset = new int[256];  // arena position of each entry's name
+    private int[] hash = new int[256];        // String.hashCode of each name
+    private int[] address = new int[256];
+    private int size;
+    private int[] index = new int[512];       // entry + 1, 0 is a free slot
+    private int indexed;                      // names in the index
+
+    public SymbolTable() {
+        this(false);
+    }
+
+    public SymbolTable(boolean offHeap) {
+        this.offHeap = offHeap;
+        this.arena = allocate(4096);
+    }
+
+    private ByteBuffer allocate(int bytes) {
+        return offHeap ? ByteBuffer.allocateDirect(bytes) : ByteBuffer.allocate(bytes);
+    }
+
+    // Appends the entry even if the name is already there, returns its index
+    public int add(CharSequence name, int address) {
+        int h = hashOf(name);
+        int slot = slotOf(name, h);
+        int entry = append(name, h, address);
+        if (index[slot] == 0) {
+            index[slot] = entry + 1;
+            if (++indexed * 2 > index.length) {
+                rebuildIndex(index.length * 2);
+            }
+        }
+        return entry;
+    }
+
+    // As HashMap.put: sets the address of the entry with this name, or adds one
+    public int put(CharSequence name, int address) {
+        int entry = find(name);
+        if (entry >= 0) {
+            this.address[entry] = address;
+            return entry;
+        }
+        return add(name, address);
+    }
+
+    // First entry called name, or -1
+    public int find(CharSequence name) {
+        int entry = index[slotOf(name, hashOf(name))];
+        return entry - 1;
+    }
+
+    public String name(int i) {
+        int pos = nameOffset[i];
+        int header = arena.getInt(pos);
+        int length = header & ~WIDE;
+        char[] chars = new char[length];
+        if ((header & WIDE) == 0) {
+            for (int k = 0; k < length; k++) {
+                chars[k] = (char) (arena.get(pos + 4 + k) & 0xFF);
+            }
+        } else {
+            for (int k = 0; k < length; k++) {
+                chars[k] = arena.getChar(pos + 4 + k * 2);
+            }
+        }
+        return new String(chars);
+    }
+
+    public int address(int i) {
+        return address[i];
+    }
+
+    public void setAddress(int i, int address) {
+        this.address[i] = address;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    // Drops the entries from newSize on together with their names
+    public void truncate(int newSize) {
+        if (newSize >= size) {
+            return;
+        }
+        size = newSize;
+        arenaSize = size == 0 ? 0 : nameOffset[size - 1] + nameBytes(size - 1);
+        rebuildIndex(index.length);
+    }
+
+    private static int bucket(int h, int capacity) {
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    private static int hashOf(CharSequence name) {
+        int h = 0;
+        for (int i = 0; i < name.length(); i++) {
+            h = 31 * h + name.charAt(i);
+        }
+        return h;
+    }
+
+    // Slot holding name, or the free slot where it would go
+    private int slotOf(CharSequence name, int h) {
+        int mask = index.length - 1;
+        int slot = bucket(h, index.length);
+        int entry;
+        while ((entry = index[slot]) != 0) {
+            if (hash[entry - 1] == h && nameEquals(entry - 1, name)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private boolean nameEquals(int i, CharSequence name) {
+        int pos = nameOffset[i];
+        int header = arena.getInt(pos);
+        int length = header & ~WIDE;
+        if (length != name.length()) {
+            return false;
+        }
+        if ((header & WIDE) == 0) {
+            for (int k = 0; k < length; k++) {
+                if ((char) (arena.get(pos + 4 + k) & 0xFF) != name.charAt(k)) {
+                    return false;
+                }
+            }
+        } else {
+            for (int k = 0; k < length; k++) {
+                if (arena.getChar(pos + 4 + k * 2) != name.charAt(k)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    // Equal names have equal bytes, a name is only stored two bytes per char when it has to be
+    private boolean sameName(int a, int b) {
+        int bytes = nameBytes(a);
+        return bytes == nameBytes(b) && arena.slice(nameOffset[a], bytes).equals(arena.slice(nameOffset[b], bytes));
+    }
+
+    private int nameBytes(int i) {
+        int header = arena.getInt(nameOffset[i]);
+        int length = header & ~WIDE;
+        return 4 + ((header & WIDE) == 0 ? length : length * 2);
+    }
+
+    private int append(CharSequence name, int h, int address) {
+        int length = name.length();
+        boolean wide = false;
+        for (int k = 0; k < length && !wide; k++) {
+            wide = name.charAt(k) > 0xFF;
+        }
+        int bytes = 4 + (wide ? length * 2 : length);
+        if (arenaSize + bytes > arena.capacity()) {
+            ByteBuffer larger = allocate(Math.max(arena.capacity() * 2, arenaSize + bytes));
+            larger.put(0, arena, 0, arenaSize);
+            arena = larger;
+        }
+        int pos = arenaSize;
+        arena.putInt(pos, wide ? length | WIDE : length);
+        for (int k = 0; k < length; k++) {
+            if (wide) {
+                arena.putChar(pos + 4 + k * 2, name.charAt(k));
+            } else {
+                arena.put(pos + 4 + k, (byte) name.charAt(k));
+            }
+        }
+        arenaSize += bytes;
+
+        if (size == nameOffset.length) {
+            nameOffset = Arrays.copyOf(nameOffset, size * 2);
+            hash = Arrays.copyOf(hash, size * 2);
+            this.address = Arrays.copyOf(this.address, size * 2);
+        }
+        nameOffset[size] = pos;
+        hash[size] = h;
+        this.address[size] = address;
+        return size++;
+    }
+
+    // Indexes the first entry of every name again, in a table of the given size (or larger)
+    private void rebuildIndex(int capacity) {
+        while (size * 2 > capacity) {
+            capacity *= 2;
+        }
+        index = new int[capacity];
+        indexed = 0;
+        int mask = capacity - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = bucket(hash[i], capacity);
+            boolean seen = false;
+            while (index[slot] != 0) {
+                int other = index[slot] - 1;
+                if (hash[other] == hash[i] && sameName(other, i)) {
+                    seen = true;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!seen) {
+                index[slot] = i + 1;
+                indexed++;
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+// Entry points into each tool for the benchmarks. The tools are in the default package,
+// which a packaged JMH benchmark cannot import, so spbench.Phases calls these by MethodHandle.
+public class BenchPhases {
+    private static final Map<String, sp_ass1.OpcodeInfo> MOT = sp_ass1.createMachineOpcodeTable();
+
+    // sp_ass1: parse, assign LC and build the symbol table
+    public static Object pass1(String code) {
+        List<sp_ass1.AssemblyLine> lines = sp_ass1.parseAssemblyCode(code, MOT);
+        sp_ass1.createSymbolTable(lines);
+        return lines;
+    }
+
+    // sp_ass2: pass-1 with literal and pool tables
+    public static Object literalPass1(String[] lines) {
+        sp_ass2.Assembler assembler = new sp_ass2.Assembler();
+        for (String line : lines) {
+            assembler.process_line(line);
+        }
+        return assembler;
+    }
+
+    // sp_ass3: machine code for every IC line, symbols[i] is the name of symbol i
+    public static Object pass2(List<String> intermediateCode, String[] symbols) {
+        StringBuilder out = new StringBuilder();
+        for (String line : intermediateCode) {
+            sp_ass3.translateLine(line, symbols, out);
+            out.append('\n');
+        }
+        return out;
+    }
+
+    // sp_ass4: macro definition processing
+    public static Object defineMacros(String definitionFile) throws IOException {
+        MacroProcessor processor = new MacroProcessor();
+        processor.processMacroFile(definitionFile);
+        return processor;
+    }
+
+    // sp_ass5: load the tables and expand every call in the source, and calls in macro bodies up to maxDepth levels
+    public static Object expandMacros(String tablesFile, String sourceFile, String outputFile, int maxDepth) {
+        sp_ass5 expander = new sp_ass5();
+        expander.setMaxDepth(maxDepth);
+        expander.readTables(tablesFile);
+        expander.processSourceFile(sourceFile, outputFile);
+        return expander;
+    }
+}
@@ -0,0 +1,30 @@
+package spbench;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs all phase benchmarks with the GC profiler (allocation rate per op) and writes JSON results
+// that can be compared between releases. Usage: benchmarks.jar [results.json] [JMH options]
+public class BenchMain {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        String result = args.length > 0 && !args[0].startsWith("-") ? args[0] : "bench-results.json";
+        String[] jmhArgs = args.length > 0 && !args[0].startsWith("-") ? Arrays.copyOfRange(args, 1, args.length) : args;
+
+        Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(jmhArgs))
+                .include("spbench\\..*Benchmark")
+                .addProfiler(GCProfiler.class)
+                .resultFormat(ResultFormatType.JSON)
+                .result(result)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,186 @@
+package spbench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Synthetic inputs in the syntax each tool accepts, the same seed always gives the same input
+final class InputGenerator {
+    private static final String[] SP_ASS1_OPS = {"MOVER", "ADD", "CMP", "BNE"};
+    private static final String[] SP_ASS1_REGS = {"A", "B", "C", "D"};
+    private static final String[] SP_ASS2_OPS = {"MOVER", "ADD", "SUB", "MUL", "COMP", "PRINT"};
+    private static final String[] SP_ASS2_REGS = {"AREG", "BREG", "CREG", "DREG"};
+
+    private InputGenerator() {
+    }
+
+    // sp_ass1 source: START, lines instructions over symbols labels, END
+    static String pass1Source(int lines, int symbols, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder("START 200\n");
+        for (int i = 0; i < lines; i++) {
+            if (i < symbols) {
+                sb.append('L').append(i).append(": ");
+            }
+            String op = SP_ASS1_OPS[random.nextInt(SP_ASS1_OPS.length)];
+            String reg = SP_ASS1_REGS[random.nextInt(SP_ASS1_REGS.length)];
+            sb.append(op).append(' ').append(reg).append(',');
+            if (random.nextBoolean()) {
+                sb.append(random.nextInt(100));
+            } else {
+                sb.append('L').append(random.nextInt(Math.max(symbols, 1)));
+            }
+            sb.append('\n');
+        }
+        sb.append("END\n");
+        return sb.toString();
+    }
+
+    // sp_ass2 source: symbol operands, literalsPerPool literal operands between two LTORGs
+    static String[] literalSource(int lines, int symbols, int literalsPerPool, long seed) {
+        Random random = new Random(seed);
+        List<String> out = new ArrayList<>(lines + symbols + lines / Math.max(literalsPerPool, 1) + 2);
+        out.add("START 100");
+        int literals = 0;
+        for (int i = 0; i < lines; i++) {
+            String op = SP_ASS2_OPS[random.nextInt(SP_ASS2_OPS.length)];
+            String reg = SP_ASS2_REGS[random.nextInt(SP_ASS2_REGS.length)];
+            if (literalsPerPool > 0 && random.nextBoolean()) {
+                out.add(op + " " + reg + ", '" + random.nextInt(10) + "'");
+                if (++literals == literalsPerPool) {
+                    out.add("LTORG");
+                    literals = 0;
+                }
+            } else {
+                out.add(op + " " + reg + ", S" + random.nextInt(Math.max(symbols, 1)));
+            }
+        }
+        for (int i = 0; i < symbols; i++) {
+            out.add("S" + i + ": DC " + (i % 10));
+        }
+        out.add("END");
+        return out.toArray(new String[0]);
+    }
+
+    // sp_ass3 intermediate code lines, operands refer to symbol numbers 0..symbols-1
+    static List<String> intermediateCode(int lines, int symbols, long seed) {
+        Random random = new Random(seed);
+        List<String> out = new ArrayList<>(lines + 2);
+        out.add("LC: 100 (AD,1) (C,100)");
+        for (int i = 0; i < lines; i++) {
+            int lc = 100 + i;
+            if (random.nextInt(8) == 0) {
+                out.add("LC: " + lc + " (DL,1) (C," + (1 + random.nextInt(4)) + ")");
+            } else {
+                out.add("LC: " + lc + " (IS," + (20 + random.nextInt(6)) + ") (R," + (1 + random.nextInt(4)) + ") (ST,"
+                        + random.nextInt(Math.max(symbols, 1)) + ")");
+            }
+        }
+        out.add("LC: " + (100 + lines) + " (AD,2)");
+        return out;
+    }
+
+    static String[] symbolNames(int symbols) {
+        String[] names = new String[symbols];
+        for (int i = 0; i < symbols; i++) {
+            names[i] = "S" + i;
+        }
+        return names;
+    }
+
+    // sp_ass4 macro definitions. Every macro has args parameters (the last one a keyword parameter)
+    // and bodyLines lines, within a group of depth macros each one calls the one defined before it
+    static String macroDefinitions(int macros, int args, int bodyLines, int depth) {
+        StringBuilder sb = new StringBuilder();
+        for (int m = 0; m < macros; m++) {
+            sb.append("MACRO\nM").append(m);
+            for (int a = 1; a <= args; a++) {
+                sb.append(a == 1 ? " " : ",").append("&P").append(a);
+                if (a == args && args > 1) {
+                    sb.append('=').append(a);
+                }
+            }
+            sb.append('\n');
+            for (int b = 0; b < bodyLines; b++) {
+                sb.append(b % 2 == 0 ? "ADD" : "MOVER").append(" &P1,&P").append(1 + b % Math.max(args, 1)).append('\n');
+            }
+            if (depth > 1 && m % depth != 0) {
+                sb.append('M').append(m - 1).append(" &P1");
+                for (int a = 2; a <= args; a++) {
+                    sb.append(",&P").append(a);
+                }
+                sb.append('\n');
+            }
+            sb.append("MEND\n\n");
+        }
+        return sb.toString();
+    }
+
+    // Tables in the text form sp_ass5.readTables loads, for the same macros as macroDefinitions.
+    // MDT lines refer to parameters as (P1), (P2) ... which is what sp_ass5 substitutes
+    static String macroTables(int macros, int args, int bodyLines, int depth) {
+        StringBuilder mnt = new StringBuilder("MNT:\n");
+        StringBuilder mdt = new StringBuilder("MDT:\n");
+        StringBuilder pntab = new StringBuilder("PNTAB:\n");
+        StringBuilder kpdtab = new StringBuilder("KPDTAB:\n");
+        int mdtPtr = 0;
+        int kpdtPtr = 0;
+        for (int m = 0; m < macros; m++) {
+            int keyParams = args > 1 ? 1 : 0;
+            mnt.append(" Name=M").append(m).append(", PosParams=").append(args).append(", KeyParams=").append(keyParams)
+                    .append(", ExpVars=0, MDT Ptr=").append(mdtPtr).append(", KPDTAB Ptr=").append(keyParams > 0 ? kpdtPtr : -1)
+                    .append(", SST Ptr=0\n");
+            for (int b = 0; b < bodyLines; b++) {
+                mdt.append(b % 2 == 0 ? "ADD" : "MOVER").append(" (P1) (P").append(1 + b % Math.max(args, 1)).append(")\n");
+                mdtPtr++;
+            }
+            if (depth > 1 && m % depth != 0) {
+                mdt.append('M').append(m - 1).append(" (P1)");
+                for (int a = 2; a <= args; a++) {
+                    mdt.append(",(P").append(a).append(')');
+                }
+                mdt.append('\n');
+                mdtPtr++;
+            }
+            pntab.append(" [");
+            for (int a = 1; a <= args; a++) {
+                pntab.append(a == 1 ? "" : ", ").append('P').append(a);
+            }
+            pntab.append("]\n");
+            if (keyParams > 0) {
+                kpdtab.append(" P").append(args).append(" = ").append(args).append('\n');
+                kpdtPtr++;
+            }
+        }
+        return mnt.append('\n').append(mdt).append('\n').append(pntab).append('\n').append(kpdtab).toString();
+    }
+
+    // sp_ass5 source: START, calls to the macros above mixed with plain DC lines, END
+    static String macroSource(int lines, int macros, int args, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder("START\n");
+        for (int i = 0; i < lines; i++) {
+            if (random.nextInt(4) == 0) {
+                sb.append('X').append(i).append(" DC ").append(i % 100).append('\n');
+                continue;
+            }
+            sb.append('M').append(random.nextInt(Math.max(macros, 1)));
+            for (int a = 1; a <= args; a++) {
+                sb.append(a == 1 ? " " : ",").append("ARG").append(random.nextInt(1000));
+            }
+            sb.append('\n');
+        }
+        sb.append("END\n");
+        return sb.toString();
+    }
+
+    static Path writeTemp(String prefix, String content) throws IOException {
+        Path file = Files.createTempFile(prefix, ".txt");
+        Files.writeString(file, content);
+        file.toFile().deleteOnExit();
+        return file;
+    }
+}
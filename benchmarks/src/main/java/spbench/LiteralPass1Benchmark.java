@@ -0,0 +1,35 @@
+package spbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// sp_ass2 pass-1 with literal pools
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LiteralPass1Benchmark {
+    @Param({"10000", "100000"})
+    int lines;
+
+    @Param({"100", "10000"})
+    int symbols;
+
+    @Param({"4", "64"})
+    int literalsPerPool;
+
+    String[] source;
+
+    @Setup
+    public void setup() {
+        source = InputGenerator.literalSource(lines, symbols, literalsPerPool, 42);
+    }
+
+    @Benchmark
+    public Object literalPass1() throws Throwable {
+        return (Object) Phases.LITERAL_PASS1.invokeExact(source);
+    }
+}
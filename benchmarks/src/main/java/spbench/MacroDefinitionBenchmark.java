@@ -0,0 +1,41 @@
+package spbench;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// MacroProcessor.processMacroFile (sp_ass4)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MacroDefinitionBenchmark {
+    @Param({"100", "1000"})
+    int macros;
+
+    @Param({"2", "8"})
+    int args;
+
+    @Param({"1", "4"})
+    int depth;
+
+    @Param({"4"})
+    int bodyLines;
+
+    String definitionFile;
+
+    @Setup
+    public void setup() throws IOException {
+        Path file = InputGenerator.writeTemp("macros", InputGenerator.macroDefinitions(macros, args, bodyLines, depth));
+        definitionFile = file.toString();
+    }
+
+    @Benchmark
+    public Object defineMacros() throws Throwable {
+        return (Object) Phases.DEFINE_MACROS.invokeExact(definitionFile);
+    }
+}
@@ -0,0 +1,62 @@
+package spbench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// sp_ass5 table load + processSourceFile
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MacroExpansionBenchmark {
+    @Param({"10000", "100000"})
+    int lines;
+
+    @Param({"100", "1000"})
+    int macros;
+
+    @Param({"2", "8"})
+    int args;
+
+    @Param({"1", "4"})
+    int depth;  // macros nest this deep and are expanded this deep
+
+    @Param({"4"})
+    int bodyLines;
+
+    String tablesFile;
+    String sourceFile;
+    String outputFile;
+    PrintStream stdout;
+
+    @Setup
+    public void setup() throws IOException {
+        tablesFile = InputGenerator.writeTemp("tables", InputGenerator.macroTables(macros, args, bodyLines, depth)).toString();
+        sourceFile = InputGenerator.writeTemp("source", InputGenerator.macroSource(lines, macros, args, 42)).toString();
+        Path output = Files.createTempFile("expanded", ".txt");
+        output.toFile().deleteOnExit();
+        outputFile = output.toString();
+
+        // sp_ass5 prints every call it sees
+        stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        System.setOut(stdout);
+    }
+
+    @Benchmark
+    public Object expandMacros() throws Throwable {
+        return (Object) Phases.EXPAND_MACROS.invokeExact(tablesFile, sourceFile, outputFile, depth);
+    }
+}
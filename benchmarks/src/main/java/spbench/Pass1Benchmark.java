@@ -0,0 +1,32 @@
+package spbench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// sp_ass1.parseAssemblyCode + createSymbolTable
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Pass1Benchmark {
+    @Param({"10000", "100000"})
+    int lines;
+
+    @Param({"100", "10000"})
+    int symbols;
+
+    String source;
+
+    @Setup
+    public void setup() {
+        source = InputGenerator.pass1Source(lines, symbols, 42);
+    }
+
+    @Benchmark
+    public Object pass1() throws Throwable {
+        return (Object) Phases.PASS1.invokeExact(source);
+    }
+}
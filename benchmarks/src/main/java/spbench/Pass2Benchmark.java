@@ -0,0 +1,35 @@
+package spbench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// sp_ass3 machine code generation
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class Pass2Benchmark {
+    @Param({"10000", "100000"})
+    int lines;
+
+    @Param({"100", "10000"})
+    int symbols;
+
+    List<String> intermediateCode;
+    String[] symbolNames;
+
+    @Setup
+    public void setup() {
+        intermediateCode = InputGenerator.intermediateCode(lines, symbols, 42);
+        symbolNames = InputGenerator.symbolNames(symbols);
+    }
+
+    @Benchmark
+    public Object pass2() throws Throwable {
+        return (Object) Phases.PASS2.invokeExact(intermediateCode, symbolNames);
+    }
+}
@@ -0,0 +1,27 @@
+package spbench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.List;
+
+// MethodHandles for BenchPhases, static final so the JIT can inline through them
+final class Phases {
+    static final MethodHandle PASS1 = find("pass1", Object.class, String.class);
+    static final MethodHandle LITERAL_PASS1 = find("literalPass1", Object.class, String[].class);
+    static final MethodHandle PASS2 = find("pass2", Object.class, List.class, String[].class);
+    static final MethodHandle DEFINE_MACROS = find("defineMacros", Object.class, String.class);
+    static final MethodHandle EXPAND_MACROS = find("expandMacros", Object.class, String.class, String.class, String.class, int.class);
+
+    private Phases() {
+    }
+
+    private static MethodHandle find(String name, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            Class<?> phases = Class.forName("BenchPhases");
+            return MethodHandles.publicLookup().findStatic(phases, name, MethodType.methodType(returnType, parameterTypes));
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
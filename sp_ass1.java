@@ -1,11 +1,14 @@
 import java.nio.file.*;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class sp_ass1 {
 
+    // Operand classes, decided once when the line is parsed
+    enum OperandKind { CONSTANT, REGISTER, SYMBOL, LITERAL }
+
     // A class to represent a line of assembly code
     static class AssemblyLine {
         String label;
@@ -15,6 +18,8 @@ public class sp_ass1 {
         String operand3;
         String comment;
         int lc;  // Location Counter
+        OperandKind kind1, kind2, kind3;  // null when the operand is missing
+        int value1, value2, value3;       // value of CONSTANT operands, -1 if it does not fit in an int
 
         AssemblyLine(String label, String instruction, String operand1, String operand2, String operand3, String comment, int lc) {
             this.label = label;
@@ -50,142 +55,508 @@ public class sp_ass1 {
         // Create the Machine Opcode Table (MOT)
         Map<String, OpcodeInfo> mot = createMachineOpcodeTable();
 
-        // Read the assembly code from a text file
-        String code = "";
+        // Use --stream for large sources, the file is never loaded into memory as a whole
+        if (args.length > 0 && "--stream".equals(args[0])) {
+            try {
+                streamPass1("assembly_code_ass1.txt", "output_ass1.txt", mot);
+            } catch (IOException e) {
+                System.err.println("Error reading file: " + e.getMessage());
+            }
+            return;
+        }
+
+        // Use --binary to write the intermediate code as output_ass1.ic for sp_ass3 --binary
+        if (args.length > 0 && "--binary".equals(args[0])) {
+            try {
+                binaryPass1("assembly_code_ass1.txt", "output_ass1.ic", mot);
+            } catch (IOException e) {
+                System.err.println("Error writing binary file: " + e.getMessage());
+            }
+            return;
+        }
+
+        // Map the assembly code file, lines are parsed where they are in the file
+        SourceFile code;
         try {
-            code = new String(Files.readAllBytes(Paths.get("assembly_code_ass1.txt")));
+            code = SourceFile.open("assembly_code_ass1.txt");
         } catch (IOException e) {
             System.err.println("Error reading file: " + e.getMessage());
             return;
         }
 
-        List<AssemblyLine> lines = parseAssemblyCode(code, mot);
-        Map<String, Integer> symbolTable = createSymbolTable(lines);
+        // Use --parallel N to parse the file on N threads
+        List<AssemblyLine> lines;
+        SymbolTable symbolTable;
+        if (args.length > 1 && "--parallel".equals(args[0])) {
+            symbolTable = new SymbolTable();
+            try {
+                lines = parseAssemblyCodeParallel(code, mot, Math.max(Integer.parseInt(args[1]), 1), symbolTable);
+            } catch (InterruptedException | ExecutionException e) {
+                System.err.println("Error parsing file: " + e.getMessage());
+                return;
+            }
+        } else {
+            lines = parseAssemblyCode(code, mot);
+            symbolTable = createSymbolTable(lines);
+        }
 
         // Write the results to output.txt
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter("output_ass1.txt"))) {
-            writer.write("Intermediate Code:\n");
+        try (OutputEncoder writer = OutputEncoder.open("output_ass1.txt")) {
+            StringBuilder ic = new StringBuilder();
+            writer.put("Intermediate Code:\n");
             for (AssemblyLine assemblyLine : lines) {
-                writer.write("LC: " + assemblyLine.lc + " ");
+                writer.put("LC: ").put(assemblyLine.lc).put(' ');
                 OpcodeInfo opcodeInfo = mot.get(assemblyLine.instruction);
                 if (opcodeInfo != null) {
                     //writer.write("(" + opcodeInfo.type + "," + opcodeInfo.opcode + ") ");
-                    writer.write(generateIntermediateCode(assemblyLine, opcodeInfo) + "\n");
+                    ic.setLength(0);
+                    writer.put(appendIntermediateCode(ic, assemblyLine, opcodeInfo)).newLine();
                 } else {
-                    writer.write("Machine Opcode: Unknown\n");
-                    writer.write("Intermediate Code: Unknown\n");
+                    writer.put("Machine Opcode: Unknown\n");
+                    writer.put("Intermediate Code: Unknown\n");
                 }
             }
 
             // Print DS (Declarative Statements) and their LC
-            writer.write("\nDeclarative Statements:\n");
+            writer.put("\nDeclarative Statements:\n");
             for (AssemblyLine line : lines) {
                 OpcodeInfo opcodeInfo = mot.get(line.instruction);
                 if (opcodeInfo != null && "DC".equals(opcodeInfo.type)) {
-                    writer.write("LC: " + line.lc + " Instruction: " + line.instruction + " Operand1: " + line.operand1 + "\n");
+                    writeDeclaration(writer, line);
                 }
             }
 
             // Print the Symbol Table
-            writer.write("\nSymbol Table:\n");
-            for (Map.Entry<String, Integer> entry : symbolTable.entrySet()) {
-                writer.write("Label: " + entry.getKey() + ", LC: " + entry.getValue() + "\n");
-            }
+            writeSymbolTable(writer, symbolTable);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public static List<AssemblyLine> parseAssemblyCode(String code, Map<String, OpcodeInfo> mot) {
+    public static List<AssemblyLine> parseAssemblyCode(CharSequence code, Map<String, OpcodeInfo> mot) {
         List<AssemblyLine> lines = new ArrayList<>();
-        String[] codeLines = code.split("\n");
+        SourceFile source = code instanceof SourceFile ? (SourceFile) code : new SourceFile(code);
+        SourceFile.Line codeLine = source.lines();
 
         int lc = 0; // Initialize Location Counter
 
-        for (int i = 0; i < codeLines.length; i++) {
-            String trimmedLine = codeLines[i].trim();
-            if (trimmedLine.isEmpty() || trimmedLine.startsWith(";")) {
+        // Lines are split at '\n' only, a lone '\r' is whitespace inside the line
+        for (int start = 0; start < source.length() || start == 0; ) {
+            int end = SourceFile.indexOf(source, '\n', start, source.length());
+            if (end < 0) {
+                end = source.length();
+            }
+            codeLine.set(start, end);
+            AssemblyLine line = parseLine(codeLine, start == 0, lc, mot);
+            start = end + 1;
+            if (line == null) {
                 continue;
             }
+            lines.add(line);
+            lc = nextLocationCounter(line, mot);
+        }
+
+        return lines;
+    }
+
+    static final int MIN_CHUNK_CHARS = 64 * 1024;
+
+    // Part of the source parsed by one thread, LCs and symbol addresses start at 0 until it is rebased
+    static class Chunk {
+        final int from;
+        final int to;
+        List<AssemblyLine> lines = new ArrayList<>();
+        SymbolTable symbols = new SymbolTable();
+        int size; // LC taken by the chunk
 
-            String label = null;
-            String instruction = null;
-            String operand1 = null;
-            String operand2 = null;
-            String operand3 = null;
-            String comment = null;
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+    }
 
-            String[] parts = trimmedLine.split("\\s+");
+    // Same lines as parseAssemblyCode, and fills symbolTable as createSymbolTable would, with the source
+    // cut into chunks at line ends that are parsed at the same time. A line only adds its size to the LC,
+    // so a chunk starts at the sum of the sizes before it, only the first line can set the LC (START n)
+    // and it is in the first chunk. Every chunk keeps its own labels, they are added to symbolTable in order
+    public static List<AssemblyLine> parseAssemblyCodeParallel(SourceFile source, Map<String, OpcodeInfo> mot, int threads,
+                                                               SymbolTable symbolTable) throws InterruptedException, ExecutionException {
+        int chunkCount = Math.max(1, Math.min(threads * 4, source.length() / MIN_CHUNK_CHARS));
+        List<Chunk> chunks = new ArrayList<>();
+        int from = 0;
+        for (int k = 1; k <= chunkCount; k++) {
+            int to = k == chunkCount ? source.length() : (int) ((long) source.length() * k / chunkCount);
+            int newline = SourceFile.indexOf(source, '\n', Math.max(to - 1, from), source.length());
+            to = k == chunkCount || newline < 0 ? source.length() : newline + 1;
+            if (to > from || chunks.isEmpty()) {
+                chunks.add(new Chunk(from, to));
+            }
+            from = to;
+        }
 
-            int partIndex = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Chunk>> parsed = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                parsed.add(pool.submit(() -> parseChunk(source, chunk, mot)));
+            }
+            List<AssemblyLine> lines = new ArrayList<>();
+            int base = 0;
+            for (Future<Chunk> future : parsed) {
+                Chunk chunk = future.get();
+                for (AssemblyLine line : chunk.lines) {
+                    line.lc += base;
+                }
+                lines.addAll(chunk.lines);
+                for (int i = 0; i < chunk.symbols.size(); i++) {
+                    symbolTable.put(chunk.symbols.name(i), chunk.symbols.address(i) + base);
+                }
+                base += chunk.size;
+            }
+            return lines;
+        } finally {
+            pool.shutdown();
+        }
+    }
 
-            if (parts[0].endsWith(":")) {
-                label = parts[0].substring(0, parts[0].length() - 1);
-                partIndex++;
+    // parseAssemblyCode over [chunk.from, chunk.to) with the LC starting at 0
+    private static Chunk parseChunk(SourceFile source, Chunk chunk, Map<String, OpcodeInfo> mot) {
+        SourceFile.Line codeLine = source.lines();
+        int lc = 0;
+        for (int start = chunk.from; start < chunk.to || start == 0; ) {
+            int end = SourceFile.indexOf(source, '\n', start, chunk.to);
+            if (end < 0) {
+                end = chunk.to;
+            }
+            codeLine.set(start, end);
+            AssemblyLine line = parseLine(codeLine, start == 0, lc, mot);
+            start = end + 1;
+            if (line == null) {
+                continue;
+            }
+            chunk.lines.add(line);
+            if (line.label != null && !line.label.isEmpty()) {
+                chunk.symbols.put(line.label, line.lc);
             }
+            lc = nextLocationCounter(line, mot);
+        }
+        chunk.size = lc;
+        return chunk;
+    }
+
+    // Parse a single source line, returns null for blank lines and comments. Tokens are read as
+    // positions in the line, only the fields kept in the AssemblyLine become Strings
+    public static AssemblyLine parseLine(CharSequence sourceLine, boolean firstLine, int lc, Map<String, OpcodeInfo> mot) {
+        int lineStart = 0;
+        int lineEnd = sourceLine.length();
+        while (lineStart < lineEnd && sourceLine.charAt(lineStart) <= ' ') {
+            lineStart++;
+        }
+        while (lineEnd > lineStart && sourceLine.charAt(lineEnd - 1) <= ' ') {
+            lineEnd--;
+        }
+        if (lineStart == lineEnd || sourceLine.charAt(lineStart) == ';') {
+            return null;
+        }
+
+        String label = null;
+        String instruction = null;
+        String operand1 = null;
+        String operand2 = null;
+        String operand3 = null;
+        String comment = null;
+
+        // Tokens are separated by runs of whitespace
+        int tokenStart = lineStart;
+        int tokenEnd = tokenEnd(sourceLine, tokenStart, lineEnd);
+
+        if (sourceLine.charAt(tokenEnd - 1) == ':') {
+            label = sourceLine.subSequence(tokenStart, tokenEnd - 1).toString();
+            tokenStart = tokenStart(sourceLine, tokenEnd, lineEnd);
+            tokenEnd = tokenEnd(sourceLine, tokenStart, lineEnd);
+        }
+
+        if (tokenStart < lineEnd) {
+            instruction = sourceLine.subSequence(tokenStart, tokenEnd).toString();
+            tokenStart = tokenStart(sourceLine, tokenEnd, lineEnd);
+            tokenEnd = tokenEnd(sourceLine, tokenStart, lineEnd);
+        }
 
-            if (partIndex < parts.length) {
-                instruction = parts[partIndex];
-                partIndex++;
+        if (firstLine && "START".equalsIgnoreCase(instruction) && tokenStart < lineEnd) {
+            try {
+                lc = Integer.parseInt(sourceLine.subSequence(tokenStart, tokenEnd).toString());
+                tokenStart = tokenStart(sourceLine, tokenEnd, lineEnd);
+                tokenEnd = tokenEnd(sourceLine, tokenStart, lineEnd);
+            } catch (NumberFormatException e) {
+                lc = 0; // Default to 0 if the operand is not a valid number
             }
+        }
 
-            if (i == 0 && "START".equalsIgnoreCase(instruction) && partIndex < parts.length) {
-                try {
-                    lc = Integer.parseInt(parts[partIndex]);
-                    partIndex++;
-                } catch (NumberFormatException e) {
-                    lc = 0; // Default to 0 if the operand is not a valid number
+        if (tokenStart < lineEnd) {
+            // Operand tokens up to a comment, joined by single spaces and split at the commas
+            StringBuilder operandsPart = new StringBuilder();
+            while (tokenStart < lineEnd && sourceLine.charAt(tokenStart) != ';') {
+                if (operandsPart.length() > 0) {
+                    operandsPart.append(' ');
                 }
+                operandsPart.append(sourceLine, tokenStart, tokenEnd);
+                tokenStart = tokenStart(sourceLine, tokenEnd, lineEnd);
+                tokenEnd = tokenEnd(sourceLine, tokenStart, lineEnd);
             }
 
-            if (partIndex < parts.length) {
-                String operandsPart = "";
-                StringBuilder operandBuilder = new StringBuilder();
-                while (partIndex < parts.length && !parts[partIndex].startsWith(";")) {
-                    if (operandBuilder.length() > 0) {
-                        operandBuilder.append(" ");
+            // Trailing commas give no operands, as with split(",")
+            boolean hasComma = operandsPart.indexOf(",") >= 0;
+            int last = operandsPart.length();
+            while (hasComma && last > 0 && operandsPart.charAt(last - 1) == ',') {
+                last--;
+            }
+            if (!hasComma || last > 0) {
+                int operandStart = 0;
+                for (int n = 0; n < 3; n++) {
+                    int operandEnd = operandsPart.indexOf(",", operandStart);
+                    if (operandEnd < 0 || operandEnd > last) {
+                        operandEnd = last;
+                    }
+                    String operand = trimmed(operandsPart, operandStart, operandEnd);
+                    if (n == 0) {
+                        operand1 = operand;
+                    } else if (n == 1) {
+                        operand2 = operand;
+                    } else {
+                        operand3 = operand;
                     }
-                    operandBuilder.append(parts[partIndex]);
-                    partIndex++;
+                    if (operandEnd == last) {
+                        break;
+                    }
+                    operandStart = operandEnd + 1;
                 }
-                operandsPart = operandBuilder.toString();
-                String[] operands = operandsPart.split(",");
+            }
+        }
 
-                if (operands.length > 0) {
-                    operand1 = operands[0].trim();
-                }
-                if (operands.length > 1) {
-                    operand2 = operands[1].trim();
-                }
-                if (operands.length > 2) {
-                    operand3 = operands[2].trim();
+        if (tokenStart < lineEnd && sourceLine.charAt(tokenStart) == ';') {
+            comment = sourceLine.subSequence(SourceFile.indexOf(sourceLine, ';', lineStart, lineEnd), lineEnd).toString();
+        }
+
+        AssemblyLine line = new AssemblyLine(label, instruction, operand1, operand2, operand3, comment, lc);
+        line.kind1 = classifyOperand(operand1, mot);
+        line.kind2 = classifyOperand(operand2, mot);
+        line.kind3 = classifyOperand(operand3, mot);
+        line.value1 = constantValue(operand1, line.kind1);
+        line.value2 = constantValue(operand2, line.kind2);
+        line.value3 = constantValue(operand3, line.kind3);
+        return line;
+    }
+
+    // Whitespace as the regex \s sees it
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+
+    private static int tokenStart(CharSequence text, int pos, int end) {
+        while (pos < end && isSpace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int tokenEnd(CharSequence text, int pos, int end) {
+        while (pos < end && !isSpace(text.charAt(pos))) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static String trimmed(CharSequence text, int start, int end) {
+        while (start < end && text.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && text.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        return text.subSequence(start, end).toString();
+    }
+
+    public static OperandKind classifyOperand(String operand, Map<String, OpcodeInfo> mot) {
+        if (operand == null) {
+            return null;
+        }
+        if (isDigits(operand)) {
+            return OperandKind.CONSTANT;
+        }
+        char first = operand.isEmpty() ? ' ' : operand.charAt(0);
+        if (first == '=' || first == '\'') {
+            return OperandKind.LITERAL;
+        }
+        OpcodeInfo opcodeInfo = mot.get(operand);
+        if (opcodeInfo != null && "R".equals(opcodeInfo.type)) {
+            return OperandKind.REGISTER;
+        }
+        return OperandKind.SYMBOL;
+    }
+
+    private static boolean isDigits(String text) {
+        if (text.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int constantValue(String operand, OperandKind kind) {
+        if (kind != OperandKind.CONSTANT) {
+            return 0;
+        }
+        long value = 0;
+        for (int i = 0; i < operand.length(); i++) {
+            value = value * 10 + (operand.charAt(i) - '0');
+            if (value > Integer.MAX_VALUE) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    // Increment the Location Counter based on instruction size
+    public static int nextLocationCounter(AssemblyLine line, Map<String, OpcodeInfo> mot) {
+        int lc = line.lc;
+        OpcodeInfo opcodeInfo = mot.get(line.instruction);
+        if (opcodeInfo != null) {
+            if ("DS".equals(opcodeInfo.type)) {
+                // For DS instructions (like DC), don't increment LC
+            } else {
+                lc += opcodeInfo.size;
+            }
+        } else {
+            lc++; // Default size if instruction not found in MOT
+        }
+        return lc;
+    }
+
+    // Streaming pass-1: reads one line at a time and writes the intermediate code as it goes.
+    // Only the symbol table is kept in memory, declarative statements are spooled to a temp file.
+    public static void streamPass1(String inputFile, String outputFile, Map<String, OpcodeInfo> mot) throws IOException {
+        SymbolTable symbolTable = new SymbolTable(true);
+        Path declFile = Files.createTempFile("sp_ass1_dc", ".txt");
+
+        try (SourceFile.LineReader sourceLine = SourceFile.stream(inputFile);
+             OutputEncoder writer = OutputEncoder.open(outputFile)) {
+            writer.put("Intermediate Code:\n");
+
+            // the spool is closed before it is read back below
+            try (OutputEncoder declWriter = OutputEncoder.open(declFile.toString())) {
+                StringBuilder ic = new StringBuilder();
+                boolean firstLine = true;
+                int lc = 0;
+                while (sourceLine.next()) {
+                    AssemblyLine line = parseLine(sourceLine, firstLine, lc, mot);
+                    firstLine = false;
+                    if (line == null) {
+                        continue;
+                    }
+
+                    writer.put("LC: ").put(line.lc).put(' ');
+                    OpcodeInfo opcodeInfo = mot.get(line.instruction);
+                    if (opcodeInfo != null) {
+                        ic.setLength(0);
+                        writer.put(appendIntermediateCode(ic, line, opcodeInfo)).newLine();
+                        if ("DC".equals(opcodeInfo.type)) {
+                            writeDeclaration(declWriter, line);
+                        }
+                    } else {
+                        writer.put("Machine Opcode: Unknown\n");
+                        writer.put("Intermediate Code: Unknown\n");
+                    }
+
+                    if (line.label != null && !line.label.isEmpty()) {
+                        symbolTable.put(line.label, line.lc);
+                    }
+                    lc = nextLocationCounter(line, mot);
                 }
             }
 
-            if (partIndex < parts.length && parts[partIndex].startsWith(";")) {
-                comment = trimmedLine.substring(trimmedLine.indexOf(";"));
+            // Print DS (Declarative Statements) and their LC
+            writer.put("\nDeclarative Statements:\n");
+            try (BufferedReader declReader = Files.newBufferedReader(declFile)) {
+                String declLine;
+                while ((declLine = declReader.readLine()) != null) {
+                    writer.put(declLine).newLine();
+                }
             }
 
-            lines.add(new AssemblyLine(label, instruction, operand1, operand2, operand3, comment, lc));
+            // Print the Symbol Table
+            writeSymbolTable(writer, symbolTable);
+        } finally {
+            Files.deleteIfExists(declFile);
+        }
+    }
+
+    // Same as streamPass1 but writes fixed width records (see ICFile) instead of text
+    public static void binaryPass1(String inputFile, String outputFile, Map<String, OpcodeInfo> mot) throws IOException {
+        SymbolTable symbolTable = new SymbolTable(true);
+        byte[] kinds = new byte[3];
+        int[] values = new int[3];
+
+        try (SourceFile.LineReader sourceLine = SourceFile.stream(inputFile);
+             ICFile.Writer writer = new ICFile.Writer(outputFile)) {
+            boolean firstLine = true;
+            int lc = 0;
+            while (sourceLine.next()) {
+                AssemblyLine line = parseLine(sourceLine, firstLine, lc, mot);
+                firstLine = false;
+                if (line == null) {
+                    continue;
+                }
 
-            // Increment the Location Counter based on instruction size
-            OpcodeInfo opcodeInfo = mot.get(instruction);
-            if (opcodeInfo != null) {
-                if ("DS".equals(opcodeInfo.type)) {
-                    // For DS instructions (like DC), don't increment LC
+                OpcodeInfo opcodeInfo = mot.get(line.instruction);
+                Arrays.fill(kinds, ICFile.OP_NONE);
+                Arrays.fill(values, 0);
+                if (opcodeInfo != null) {
+                    if ("DC".equals(opcodeInfo.type)) {
+                        setOperand(writer, kinds, values, 0, line.operand1, line.kind1, line.value1, true);
+                    } else {
+                        setOperand(writer, kinds, values, 0, line.operand1, line.kind1, line.value1, false);
+                        if (line.operand1 != null) {
+                            setOperand(writer, kinds, values, 1, line.operand2, line.kind2, line.value2, false);
+                            setOperand(writer, kinds, values, 2, line.operand3, line.kind3, line.value3, false);
+                        }
+                    }
+                    writer.addRecord(line.lc, ICFile.classOf(opcodeInfo.type), Integer.parseInt(opcodeInfo.opcode), kinds, values);
                 } else {
-                    lc += opcodeInfo.size;
+                    writer.addRecord(line.lc, ICFile.CLS_UNKNOWN, -1, kinds, values);
                 }
-            } else {
-                lc++; // Default size if instruction not found in MOT
+
+                if (line.label != null && !line.label.isEmpty()) {
+                    symbolTable.put(line.label, line.lc);
+                }
+                lc = nextLocationCounter(line, mot);
             }
+            writer.finish(symbolTable);
         }
+    }
 
-        return lines;
+    // Operand kind follows generateIntermediateCode: constants stay constants, everything else is a symbol
+    private static void setOperand(ICFile.Writer writer, byte[] kinds, int[] values, int slot, String operand,
+                                   OperandKind kind, int value, boolean constant) {
+        if (operand == null) {
+            return;
+        }
+        // a number with leading zeros keeps its text, the IC shows it as written
+        if (kind == OperandKind.CONSTANT && value >= 0 && (operand.length() == 1 || operand.charAt(0) != '0')) {
+            kinds[slot] = ICFile.OP_C;
+            values[slot] = value;
+            return;
+        }
+        kinds[slot] = constant || kind == OperandKind.CONSTANT ? ICFile.OP_C_TEXT : ICFile.OP_ST;
+        values[slot] = writer.intern(operand);
     }
 
-    public static Map<String, Integer> createSymbolTable(List<AssemblyLine> lines) {
-        Map<String, Integer> symbolTable = new HashMap<>();
+    public static SymbolTable createSymbolTable(List<AssemblyLine> lines) {
+        SymbolTable symbolTable = new SymbolTable();
 
         for (AssemblyLine line : lines) {
             if (line.label != null && !line.label.isEmpty()) {
@@ -214,41 +585,47 @@ public class sp_ass1 {
         return mot;
     }
 
+    private static void writeDeclaration(OutputEncoder writer, AssemblyLine line) throws IOException {
+        writer.put("LC: ").put(line.lc).put(" Instruction: ").put(line.instruction)
+                .put(" Operand1: ").put(String.valueOf(line.operand1)).newLine();
+    }
+
+    private static void writeSymbolTable(OutputEncoder writer, SymbolTable symbolTable) throws IOException {
+        writer.put("\nSymbol Table:\n");
+        for (int entry = 0; entry < symbolTable.size(); entry++) {
+            writer.put("Label: ").put(symbolTable.name(entry)).put(", LC: ").put(symbolTable.address(entry)).newLine();
+        }
+    }
+
     // Method to generate Intermediate Code
     public static String generateIntermediateCode(AssemblyLine line, OpcodeInfo opcodeInfo) {
         if (opcodeInfo == null) {
             return "Unknown"; // Handle unknown opcode
         }
+        return appendIntermediateCode(new StringBuilder(), line, opcodeInfo).toString();
+    }
 
-        StringBuilder ic = new StringBuilder();
+    // Same as generateIntermediateCode, into a buffer the caller reuses
+    static StringBuilder appendIntermediateCode(StringBuilder ic, AssemblyLine line, OpcodeInfo opcodeInfo) {
         ic.append("(").append(opcodeInfo.type).append(",").append(opcodeInfo.opcode).append(") ");
         if ("DC".equals(opcodeInfo.type) && line.operand1 != null) {
             ic.append("(C,").append(line.operand1).append(")");
         } else if (line.operand1 != null) {
-            if (line.operand1.matches("\\d+")) {
-                ic.append("(C,").append(line.operand1).append(")");
-            } else {
-                ic.append("(ST,").append(line.operand1).append(")");
-            }
+            appendOperand(ic, line.operand1, line.kind1);
             if (line.operand2 != null) {
-                ic.append(" (");
-                if (line.operand2.matches("\\d+")) {
-                    ic.append("C,").append(line.operand2);
-                } else {
-                    ic.append("ST,").append(line.operand2);
-                }
-                ic.append(")");
+                ic.append(" ");
+                appendOperand(ic, line.operand2, line.kind2);
             }
             if (line.operand3 != null) {
-                ic.append(" (");
-                if (line.operand3.matches("\\d+")) {
-                    ic.append("C,").append(line.operand3);
-                } else {
-                    ic.append("ST,").append(line.operand3);
-                }
-                ic.append(")");
+                ic.append(" ");
+                appendOperand(ic, line.operand3, line.kind3);
             }
         }
-        return ic.toString();
+        return ic;
+    }
+
+    // Constants are written as (C,n), registers, symbols and literals as (ST,name)
+    private static void appendOperand(StringBuilder ic, String operand, OperandKind kind) {
+        ic.append(kind == OperandKind.CONSTANT ? "(C," : "(ST,").append(operand).append(")");
     }
 }
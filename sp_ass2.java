@@ -1,5 +1,6 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class sp_ass2 { // Change the class name to sp_ass2
     static final int MAX_SYMBOLS = 100;
@@ -7,6 +8,7 @@ public class sp_ass2 { // Change the class name to sp_ass2
     static final int MAX_LITERALS = 100;
     static final int MAX_POOLS = 100;
     static final int MAX_LINE_LENGTH = 100;
+    static final int MIN_CHUNK_CHARS = 64 * 1024; // smallest chunk of a parallel pass-1
 
     static class MOTEntry {
         String name;
@@ -30,16 +32,6 @@ public class sp_ass2 { // Change the class name to sp_ass2
         }
     }
 
-    static class Symbol {
-        String name;
-        int address;
-
-        Symbol(String name, int address) {
-            this.name = name;
-            this.address = address;
-        }
-    }
-
     static class Literal {
         String name;
         int address;
@@ -62,24 +54,63 @@ public class sp_ass2 { // Change the class name to sp_ass2
         }
     }
 
-    static class IntermediateCode {
-        String operation;
-        int code;
-        int reg;
-        String operandType;
-        int operandValue;
-        int lc;
+    enum Operation { AD, IS, DL }
+
+    enum OperandType { NONE, C, L, R, S }
+
+    static final Operation[] OPERATIONS = Operation.values();
+    static final OperandType[] OPERAND_TYPES = OperandType.values();
+
+    // Intermediate code kept by column, one array per field and index i is the i-th line.
+    // Class, opcode, register and operand type are one byte each, LC and operand value an int,
+    // so a line takes 12 bytes and no object. Opcodes and register codes of the MOT fit in a byte
+    static class IntermediateCodeStore {
+        byte[] operation = new byte[1024];
+        byte[] code = new byte[1024];
+        byte[] reg = new byte[1024];          // -1 when there is no register
+        byte[] operand_type = new byte[1024];
+        int[] operand_value = new int[1024];
+        int[] lc = new int[1024];
+        int size;
+
+        void add(Operation op, int opcode, int register, OperandType type, int value, int location) {
+            if (size == lc.length) {
+                int capacity = size * 2;
+                operation = Arrays.copyOf(operation, capacity);
+                code = Arrays.copyOf(code, capacity);
+                reg = Arrays.copyOf(reg, capacity);
+                operand_type = Arrays.copyOf(operand_type, capacity);
+                operand_value = Arrays.copyOf(operand_value, capacity);
+                lc = Arrays.copyOf(lc, capacity);
+            }
+            operation[size] = (byte) op.ordinal();
+            code[size] = (byte) opcode;
+            reg[size] = (byte) register;
+            operand_type[size] = (byte) type.ordinal();
+            operand_value[size] = value;
+            lc[size] = location;
+            size++;
+        }
 
-        IntermediateCode(String operation, int code, int reg, String operandType, int operandValue, int lc) {
-            this.operation = operation;
-            this.code = code;
-            this.reg = reg;
-            this.operandType = operandType;
-            this.operandValue = operandValue;
-            this.lc = lc;
+        int size() {
+            return size;
+        }
+
+        // Drops the lines from new_size on, used when an incremental run rolls back
+        void truncate(int new_size) {
+            size = Math.min(size, new_size);
         }
     }
 
+    // Assembler state before a source line, saved at the start of every LTORG pool
+    static class Checkpoint {
+        int line;
+        int symbols, literals, pools, codes;
+        int location_counter, pool_count;
+        int pool_literal_count;
+        int last_symbol_address;
+    }
+
     static MOTEntry[] mot = {
             new MOTEntry("STOP", "IS", 0),
             new MOTEntry("ADD", "IS", 1),
@@ -108,41 +139,62 @@ public class sp_ass2 { // Change the class name to sp_ass2
             new Register("DREG", 4)
     };
 
-    static ArrayList<Symbol> symbol_table = new ArrayList<>();
-    static ArrayList<Literal> literal_table = new ArrayList<>();
-    static ArrayList<Pool> pool_table = new ArrayList<>();
-    static ArrayList<IntermediateCode> intermediate_code = new ArrayList<>();
-    static int location_counter = 0;
-    static int pool_count = 0;
-
-    static void process_line(String line) {
-        String[] tokens = line.split("[ ,\t]+");
-        if (tokens.length == 0) return;
+    // Hash indexes so each lookup is O(1) instead of a scan over the arrays/tables
+    static HashMap<String, MOTEntry> mot_index = new HashMap<>();
+    static HashMap<String, Register> register_index = new HashMap<>();
 
-        String label = null, opcode = null, operand1 = null, operand2 = null;
-        int tokenIndex = 0;
+    static {
+        for (MOTEntry entry : mot) {
+            mot_index.put(entry.name, entry);
+        }
+        for (Register reg : registers) {
+            register_index.put(reg.name, reg);
+        }
+    }
 
-        // Check if first token is a label
-        if (tokens[tokenIndex].endsWith(":")) {
-            label = tokens[tokenIndex].substring(0, tokens[tokenIndex].length() - 1);
-            tokenIndex++;
+    // One assembler run, all tables are per instance so several programs can be assembled at the same time
+    static class Assembler {
+        SymbolTable symbol_table = new SymbolTable();
+        ArrayList<Literal> literal_table = new ArrayList<>();
+        ArrayList<Pool> pool_table = new ArrayList<>();
+        HashMap<String, Integer> pool_index = new HashMap<>(); // literals of the open pool by name
+        IntermediateCodeStore intermediate_code = new IntermediateCodeStore();
+        int location_counter = 0;
+        int pool_count = 0;
+        ArrayList<Checkpoint> checkpoints = new ArrayList<>();
+        PrintStream console = System.out; // error messages, a chunk of a parallel run keeps its own
+
+        Assembler() {
+            pool_table.add(new Pool(0, 0));
         }
 
-        if (tokenIndex < tokens.length) opcode = tokens[tokenIndex++];
-        if (tokenIndex < tokens.length) operand1 = tokens[tokenIndex++];
-        if (tokenIndex < tokens.length) operand2 = tokens[tokenIndex];
+        // Tokens are read as positions in the line, only the four that are used become Strings
+        void process_line(CharSequence line) {
+            String[] tokens = split_tokens(line);
+            if (tokens.length == 0) return;
 
-        // Process label if exists
-        if (label != null) {
-            symbol_table.add(new Symbol(label, location_counter));
-        }
+            String label = null, opcode = null, operand1 = null, operand2 = null;
+            int tokenIndex = 0;
+
+            // Check if first token is a label
+            if (tokens[tokenIndex].endsWith(":")) {
+                label = tokens[tokenIndex].substring(0, tokens[tokenIndex].length() - 1);
+                tokenIndex++;
+            }
+
+            if (tokenIndex < tokens.length) opcode = tokens[tokenIndex++];
+            if (tokenIndex < tokens.length) operand1 = tokens[tokenIndex++];
+            if (tokenIndex < tokens.length) operand2 = tokens[tokenIndex];
 
-        // Process opcode and operands
-        if (opcode != null) {
-            boolean found = false;
-            for (MOTEntry entry : mot) {
-                if (entry.name.equals(opcode)) {
-                    found = true;
+            // Process label if exists
+            if (label != null) {
+                add_symbol(label, location_counter);
+            }
+
+            // Process opcode and operands
+            if (opcode != null) {
+                MOTEntry entry = mot_index.get(opcode);
+                if (entry != null) {
                     if (entry.type.equals("AD")) {
                         processADInstruction(entry, opcode, operand1);
                     } else if (entry.type.equals("IS")) {
@@ -150,180 +202,819 @@ public class sp_ass2 { // Change the class name to sp_ass2
                     } else if (entry.type.equals("DL")) {
                         processDLInstruction(entry, opcode, operand1);
                     }
+                } else {
+                    console.println("Error: Invalid instruction " + opcode);
+                }
+            }
+        }
+
+        // Same tokens as line.split("[ ,\t]+"), but at most the first four
+        static String[] split_tokens(CharSequence line) {
+            int length = line.length();
+            int end = length;
+            while (end > 0 && is_separator(line.charAt(end - 1))) {
+                end--; // trailing separators give no tokens
+            }
+            if (end == 0) {
+                return length == 0 ? new String[]{""} : new String[0];
+            }
+            String[] tokens = new String[4];
+            int count = 0;
+            int pos = 0;
+            while (count < tokens.length) {
+                int token_end = pos;
+                while (token_end < end && !is_separator(line.charAt(token_end))) {
+                    token_end++;
+                }
+                tokens[count++] = line.subSequence(pos, token_end).toString();
+                pos = token_end;
+                while (pos < end && is_separator(line.charAt(pos))) {
+                    pos++;
+                }
+                if (pos == end) {
                     break;
                 }
             }
-            if (!found) {
-                System.out.println("Error: Invalid instruction " + opcode);
+            return count == tokens.length ? tokens : Arrays.copyOf(tokens, count);
+        }
+
+        static boolean is_separator(char c) {
+            return c == ' ' || c == ',' || c == '\t';
+        }
+
+        void processADInstruction(MOTEntry entry, String opcode, String operand1) {
+            if (opcode.equals("START")) {
+                if (operand1 != null) {
+                    location_counter = Integer.parseInt(operand1);
+                    intermediate_code.add(Operation.AD, entry.opcode, -1, OperandType.C, location_counter, location_counter);
+                } else {
+                    console.println("Error: Missing operand for START directive");
+                }
+            } else if (opcode.equals("END")) {
+                intermediate_code.add(Operation.AD, entry.opcode, -1, OperandType.NONE, 0, location_counter);
+                fill_literal_addresses();
+            } else if (opcode.equals("LTORG")) {
+                intermediate_code.add(Operation.AD, entry.opcode, -1, OperandType.NONE, 0, location_counter);
+
+                fill_literal_addresses();
+                pool_count++;
+                pool_table.add(new Pool(literal_table.size(), 0));
+                pool_index.clear();
             }
         }
-    }
 
-    static void processADInstruction(MOTEntry entry, String opcode, String operand1) {
-        if (opcode.equals("START")) {
-            if (operand1 != null) {
-                location_counter = Integer.parseInt(operand1);
-                intermediate_code.add(new IntermediateCode("AD", entry.opcode, -1, "C", location_counter, location_counter));
-            } else {
-                System.out.println("Error: Missing operand for START directive");
+
+        void processISInstruction(MOTEntry entry, String operand1, String operand2) {
+            // Process first operand (always a register for MOVER)
+            Register reg1 = register_index.get(operand1);
+            if (reg1 == null) {
+                console.println("Error: Invalid register " + operand1);
+                return;
+            }
+
+            OperandType operand_type = OperandType.NONE;
+            int operand_value = 0;
+
+            // Process second operand
+            if (operand2 != null) {
+                if (operand2.startsWith("'")) {
+                    // Literal, a pool holds each literal once
+                    operand_type = OperandType.L;
+                    operand_value = pool_literal(operand2);
+                } else {
+                    // Check if it's a register
+                    Register reg2 = register_index.get(operand2);
+                    if (reg2 != null) {
+                        // It's a register
+                        operand_type = OperandType.R;
+                        operand_value = reg2.code;
+                    } else {
+                        // Assume it's a symbol
+                        operand_type = OperandType.S;
+                        operand_value = symbol_reference(operand2);
+                    }
+                }
+            }
+
+            intermediate_code.add(Operation.IS, entry.opcode, reg1.code, operand_type, operand_value, location_counter);
+            location_counter++;
+        }
+
+        // Index of the literal in the open pool, added without an address if the pool does not have it yet
+        int pool_literal(String name) {
+            Integer index = pool_index.get(name);
+            if (index == null) {
+                literal_table.add(new Literal(name, -1, pool_count));
+                pool_table.get(pool_count).literal_count++;
+                index = literal_table.size() - 1;
+                pool_index.put(name, index);
             }
-        } else if (opcode.equals("END")) {
-            intermediate_code.add(new IntermediateCode("AD", entry.opcode, -1, null, 0, location_counter));
-            fill_literal_addresses();
-        } else if (opcode.equals("LTORG")) {
-            intermediate_code.add(new IntermediateCode("AD", entry.opcode, -1, null, 0, location_counter));
+            return index;
+        }
 
-            fill_literal_addresses();
-            pool_count++;
-            pool_table.add(new Pool(literal_table.size(), 0));
+        // pool_index of the open pool, after the tables were rolled back, loaded or merged
+        void rebuild_pool_index() {
+            pool_index.clear();
+            for (int i = pool_table.get(pool_count).start_index; i < literal_table.size(); i++) {
+                pool_index.putIfAbsent(literal_table.get(i).name, i);
+            }
+        }
+
+        // Appends to symbol_table, lookups resolve to the first entry with the name
+        int add_symbol(String name, int address) {
+            return symbol_table.add(name, address);
         }
-    }
 
+        // Symbol an operand refers to, added at the current LC if it is not in the table yet
+        int symbol_reference(String name) {
+            int index = symbol_table.find(name);
+            return index >= 0 ? index : add_symbol(name, location_counter);
+        }
 
-    static void processISInstruction(MOTEntry entry, String operand1, String operand2) {
-        int reg_code1 = -1;
-        int reg_code2 = -1;
+        // DS and DC give the symbol added last the address of the storage
+        void set_last_symbol_address() {
+            symbol_table.setAddress(symbol_table.size() - 1, location_counter);
+        }
 
-        // Process first operand (always a register for MOVER)
-        for (Register reg : registers) {
-            if (reg.name.equals(operand1)) {
-                reg_code1 = reg.code;
-                break;
+        void processDLInstruction(MOTEntry entry, String opcode, String operand1) {
+            if (opcode.equals("DS")) {
+                int size = Integer.parseInt(operand1);
+                set_last_symbol_address();
+                intermediate_code.add(Operation.DL, entry.opcode, -1, OperandType.C, size, location_counter);
+                location_counter += size;
+            } else if (opcode.equals("DC")) {
+                int value = Integer.parseInt(operand1);
+                set_last_symbol_address();
+                intermediate_code.add(Operation.DL, entry.opcode, -1, OperandType.C, value, location_counter);
+                location_counter++;
             }
         }
-        if (reg_code1 == -1) {
-            System.out.println("Error: Invalid register " + operand1);
-            return;
+
+        void read_file_and_process_lines(String filename) {
+            try {
+                process_file(filename);
+            } catch (IOException e) {
+                console.println("Error: Unable to open file " + filename);
+            }
         }
 
-        IntermediateCode ic = new IntermediateCode("IS", entry.opcode, reg_code1, null, 0, location_counter);
+        // read_file_and_process_lines for callers that report the failure themselves
+        void process_file(String filename) throws IOException {
+            SourceFile.Line line = SourceFile.open(filename).lines();
+            while (line.next()) {
+                line.trim();
+                process_line(line);
+            }
+        }
 
-        // Process second operand
-        if (operand2 != null) {
-            if (operand2.startsWith("'")) {
-                // Literal
-                literal_table.add(new Literal(operand2, -1, pool_count));
-                pool_table.get(pool_count).literal_count++;
-                ic.operandType = "L";
-                ic.operandValue = literal_table.size() - 1;
-            } else {
-                // Check if it's a register
-                for (Register reg : registers) {
-                    if (reg.name.equals(operand2)) {
-                        reg_code2 = reg.code;
-                        break;
-                    }
+        // read_file_and_process_lines with the file cut into chunks at line ends that are assembled at the
+        // same time, each by a ChunkAssembler, and then added to these tables in order
+        void read_file_and_process_lines_parallel(String filename, int threads) {
+            SourceFile source;
+            try {
+                source = SourceFile.open(filename);
+            } catch (IOException e) {
+                console.println("Error: Unable to open file " + filename);
+                return;
+            }
+            int chunk_count = Math.max(1, Math.min(threads * 4, source.length() / MIN_CHUNK_CHARS));
+            List<ChunkAssembler> chunks = new ArrayList<>();
+            int from = 0;
+            for (int k = 1; k <= chunk_count; k++) {
+                int to = k == chunk_count ? source.length()
+                        : line_start_after(source, Math.max(from + 1, (int) ((long) source.length() * k / chunk_count)));
+                if (to > from) {
+                    chunks.add(new ChunkAssembler(from, to));
                 }
-                if (reg_code2 != -1) {
-                    // It's a register
-                    ic.operandType = "R";
-                    ic.operandValue = reg_code2;
-                } else {
-                    // Assume it's a symbol
-                    int sym_index = -1;
-                    for (int j = 0; j < symbol_table.size(); j++) {
-                        if (symbol_table.get(j).name.equals(operand2)) {
-                            sym_index = j;
-                            break;
-                        }
+                from = to;
+            }
+
+            ExecutorService pool = Executors.newFixedThreadPool(threads);
+            try {
+                List<Future<ChunkAssembler>> assembled = new ArrayList<>();
+                for (ChunkAssembler chunk : chunks) {
+                    assembled.add(pool.submit(() -> chunk.assemble(source)));
+                }
+                for (Future<ChunkAssembler> future : assembled) {
+                    append_chunk(future.get());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                console.println("Error: Interrupted while assembling " + filename);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        // First line start at or after pos (pos > 0), lines end as with SourceFile.Line
+        static int line_start_after(SourceFile source, int pos) {
+            while (pos < source.length()) {
+                char before = source.charAt(pos - 1);
+                if (before == '\n' || (before == '\r' && source.charAt(pos) != '\n')) {
+                    return pos;
+                }
+                pos++;
+            }
+            return source.length();
+        }
+
+        // Adds the tables of a chunk as if its lines had been processed here. The chunk's LCs are moved by
+        // the offset of their segment. The pool open before the chunk is placed here at each of the chunk's
+        // flushes of it: first its literals still without an address, then the chunk's literals of that
+        // pool that it does not hold yet, so the offset after a flush changes by the literals placed here
+        // beyond those the chunk placed itself
+        void append_chunk(ChunkAssembler chunk) {
+            byte[] log = chunk.log.toByteArray();
+            int[] offsets = new int[chunk.segments.size() + 1];
+            offsets[0] = location_counter;
+            int[] literal_map = new int[chunk.literal_table.size()];
+            int open_end = chunk.pool_table.size() > 1 ? chunk.pool_table.get(1).start_index : chunk.literal_table.size();
+            int placed = 0; // chunk literals of the open pool merged so far
+            for (int k = 1; k <= chunk.segments.size(); k++) {
+                int[] segment = chunk.segments.get(k - 1);
+                if (segment[0] == ChunkAssembler.START_SEGMENT) {
+                    offsets[k] = 0;
+                    continue;
+                }
+                int lc = segment[1] + offsets[k - 1];
+                int address = lc;
+                for (int i = pool_table.get(pool_count).start_index; i < literal_table.size(); i++) {
+                    if (literal_table.get(i).address == -1) {
+                        literal_table.get(i).address = address++;
                     }
-                    if (sym_index == -1) {
-                        symbol_table.add(new Symbol(operand2, location_counter));
-                        sym_index = symbol_table.size() - 1;
+                }
+                int chunk_placed = segment[2] - placed;
+                for (; placed < segment[2]; placed++) {
+                    literal_map[placed] = pool_literal(chunk.literal_table.get(placed).name);
+                    Literal lit = literal_table.get(literal_map[placed]);
+                    if (lit.address == -1) {
+                        lit.address = address++;
                     }
-                    ic.operandType = "S";
-                    ic.operandValue = sym_index;
                 }
+                offsets[k] = offsets[k - 1] + (address - lc) - chunk_placed;
+            }
+            for (; placed < open_end; placed++) {
+                literal_map[placed] = pool_literal(chunk.literal_table.get(placed).name);
+            }
+
+            // The chunk's later pools are its own, they are added as they are
+            int literal_base = literal_table.size() - open_end;
+            for (int i = open_end; i < chunk.literal_table.size(); i++) {
+                Literal lit = chunk.literal_table.get(i);
+                int address = lit.address == -1 ? -1 : lit.address + offsets[chunk.literal_segment[i]];
+                literal_table.add(new Literal(lit.name, address, pool_count + lit.pool_no));
+                literal_map[i] = literal_table.size() - 1;
+            }
+            for (int p = 1; p < chunk.pool_table.size(); p++) {
+                Pool local_pool = chunk.pool_table.get(p);
+                pool_table.add(new Pool(literal_base + local_pool.start_index, local_pool.literal_count));
             }
+            pool_count += chunk.pool_count;
+            if (chunk.pool_count > 0) {
+                rebuild_pool_index();
+            }
+
+            // Labels are always added, a reference only when no symbol of that name exists. A symbol
+            // that already exists is found in these tables rather than in the chunk
+            SymbolTable local = chunk.symbol_table;
+            int[] symbol_map = new int[local.size()];
+            int next_set = 0;
+            for (int i = 0; i < local.size(); i++) {
+                next_set = apply_set_last(chunk, next_set, i, offsets);
+                String name = local.name(i);
+                int existing = local.find(name) == i ? symbol_table.find(name) : -1;
+                int address = local.address(i) + offsets[chunk.symbol_segment[i]];
+                if (chunk.symbol_kind[i] == ChunkAssembler.REFERENCE && existing >= 0) {
+                    symbol_map[i] = existing;
+                } else {
+                    int index = symbol_table.add(name, address);
+                    symbol_map[i] = existing >= 0 ? existing : index;
+                }
+            }
+            apply_set_last(chunk, next_set, local.size(), offsets);
+
+            console.write(log, 0, log.length);
+            if (chunk.failure != null) {
+                throw chunk.failure; // the line that failed stops the run, as it would without chunks
+            }
+
+            IntermediateCodeStore ic = chunk.intermediate_code;
+            for (int i = 0; i < ic.size; i++) {
+                OperandType type = OPERAND_TYPES[ic.operand_type[i]];
+                int value = ic.operand_value[i];
+                if (type == OperandType.S) {
+                    value = symbol_map[value];
+                } else if (type == OperandType.L) {
+                    value = literal_map[value];
+                }
+                intermediate_code.add(OPERATIONS[ic.operation[i]], ic.code[i], ic.reg[i], type, value,
+                        ic.lc[i] + offsets[chunk.code_segment[i]]);
+            }
+
+            location_counter = chunk.location_counter + offsets[chunk.segment];
         }
 
-        intermediate_code.add(ic);
-        location_counter++;
-    }
+        // DS and DC lines of the chunk that came after its first `symbols` symbols. With no symbol at all
+        // the line fails as it does without chunks, after the messages of the lines before it
+        private int apply_set_last(ChunkAssembler chunk, int next, int symbols, int[] offsets) {
+            while (next < chunk.set_last.size() && chunk.set_last.get(next)[0] == symbols) {
+                int[] set = chunk.set_last.get(next++);
+                if (symbol_table.isEmpty()) {
+                    console.write(chunk.log.toByteArray(), 0, set[3]);
+                }
+                symbol_table.setAddress(symbol_table.size() - 1, set[1] + offsets[set[2]]);
+            }
+            return next;
+        }
 
-    static void processDLInstruction(MOTEntry entry, String opcode, String operand1) {
-        if (opcode.equals("DS")) {
-            int size = Integer.parseInt(operand1);
-            symbol_table.get(symbol_table.size() - 1).address = location_counter;
-            intermediate_code.add(new IntermediateCode("DL", entry.opcode, -1, "C", size, location_counter));
-            location_counter += size;
-        } else if (opcode.equals("DC")) {
-            int value = Integer.parseInt(operand1);
-            symbol_table.get(symbol_table.size() - 1).address = location_counter;
-            intermediate_code.add(new IntermediateCode("DL", entry.opcode, -1, "C", value, location_counter));
-            location_counter++;
+        // Incremental mode: the tables of the previous run are kept in cache_filename, only the
+        // LTORG pool with the first changed line and everything after it is processed again
+        void assemble_incremental(String input_filename, String output_filename, String cache_filename) {
+            // Lines are kept as their trimmed position in the mapped file
+            SourceFile.Line line;
+            int[] line_starts = new int[1024];
+            int[] line_ends = new int[1024];
+            int line_count = 0;
+            try {
+                line = SourceFile.open(input_filename).lines();
+                while (line.next()) {
+                    line.trim();
+                    if (line_count == line_starts.length) {
+                        line_starts = Arrays.copyOf(line_starts, line_count * 2);
+                        line_ends = Arrays.copyOf(line_ends, line_count * 2);
+                    }
+                    line_starts[line_count] = line.start();
+                    line_ends[line_count++] = line.end();
+                }
+            } catch (IOException e) {
+                console.println("Error: Unable to open file " + input_filename);
+                return;
+            }
+            long[] hashes = new long[line_count];
+            for (int i = 0; i < hashes.length; i++) {
+                line.set(line_starts[i], line_ends[i]);
+                hashes[i] = line_hash(line);
+            }
+
+            int start = 0;
+            long[] old_hashes = load_cache(cache_filename);
+            if (old_hashes != null) {
+                int changed = 0;
+                while (changed < hashes.length && changed < old_hashes.length && hashes[changed] == old_hashes[changed]) {
+                    changed++;
+                }
+                if (changed == hashes.length && changed == old_hashes.length) {
+                    console.println("No changes since the last run");
+                    start = -1;
+                } else {
+                    start = restore_checkpoint(changed);
+                    console.println("Re-assembling from line " + (start + 1) + " (first change at line " + (changed + 1) + ")");
+                }
+            }
+
+            if (start >= 0) {
+                for (int i = start; i < line_count; i++) {
+                    save_checkpoint(i);
+                    line.set(line_starts[i], line_ends[i]);
+                    process_line(line);
+                }
+                save_cache(cache_filename, hashes);
+            }
+            write_output_to_file(output_filename);
         }
-    }
 
-    static void read_file_and_process_lines(String filename) {
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                process_line(line.trim());
+        // 64 bit FNV-1a hash of a source line
+        static long line_hash(CharSequence line) {
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < line.length(); i++) {
+                hash ^= line.charAt(i);
+                hash *= 0x100000001b3L;
             }
-        } catch (IOException e) {
-            System.out.println("Error: Unable to open file " + filename);
+            return hash;
         }
-    }
 
-    static void fill_literal_addresses() {
-        for (int i = pool_table.get(pool_count).start_index; i < literal_table.size(); i++) {
-            if (literal_table.get(i).address == -1) {
-                literal_table.get(i).address = location_counter++;
+        void save_checkpoint(int line) {
+            if (!checkpoints.isEmpty() && checkpoints.get(checkpoints.size() - 1).pool_count == pool_count) {
+                return; // still in the same pool
             }
+            Checkpoint cp = new Checkpoint();
+            cp.line = line;
+            cp.symbols = symbol_table.size();
+            cp.literals = literal_table.size();
+            cp.pools = pool_table.size();
+            cp.codes = intermediate_code.size();
+            cp.location_counter = location_counter;
+            cp.pool_count = pool_count;
+            cp.pool_literal_count = pool_table.get(pool_count).literal_count;
+            cp.last_symbol_address = symbol_table.isEmpty() ? 0 : symbol_table.address(symbol_table.size() - 1);
+            checkpoints.add(cp);
         }
-    }
 
-    static void write_output_to_file(String filename) {
-        try (BufferedWriter bw = new BufferedWriter(new FileWriter(filename))) {
+        // Rolls the tables back to the last checkpoint at or before changed_line, returns its line
+        int restore_checkpoint(int changed_line) {
+            int n = checkpoints.size() - 1;
+            while (n > 0 && checkpoints.get(n).line > changed_line) {
+                n--;
+            }
+            Checkpoint cp = checkpoints.get(n);
+
+            symbol_table.truncate(cp.symbols);
+            literal_table.subList(cp.literals, literal_table.size()).clear();
+            pool_table.subList(cp.pools, pool_table.size()).clear();
+            intermediate_code.truncate(cp.codes);
+            checkpoints.subList(n, checkpoints.size()).clear();
+
+            location_counter = cp.location_counter;
+            pool_count = cp.pool_count;
+            pool_table.get(pool_count).literal_count = cp.pool_literal_count;
+            if (!symbol_table.isEmpty()) {
+                symbol_table.setAddress(symbol_table.size() - 1, cp.last_symbol_address);
+            }
+            rebuild_pool_index();
+            return cp.line;
+        }
 
-            // Write Intermediate Code with LC (Variant I form)
-            bw.write("Intermediate Code with LC (Variant I form):\n");
-            for (IntermediateCode ic : intermediate_code) {
-                bw.write(ic.lc + " (" + ic.operation + ", " + ic.code + ")");
-                if (ic.reg != -1) {
-                    bw.write(" (R, " + ic.reg + ")");
+        void save_cache(String filename, long[] hashes) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filename)))) {
+                out.writeInt(hashes.length);
+                for (long hash : hashes) {
+                    out.writeLong(hash);
+                }
+                out.writeInt(checkpoints.size());
+                for (Checkpoint cp : checkpoints) {
+                    out.writeInt(cp.line);
+                    out.writeInt(cp.symbols);
+                    out.writeInt(cp.literals);
+                    out.writeInt(cp.pools);
+                    out.writeInt(cp.codes);
+                    out.writeInt(cp.location_counter);
+                    out.writeInt(cp.pool_count);
+                    out.writeInt(cp.pool_literal_count);
+                    out.writeInt(cp.last_symbol_address);
+                }
+                out.writeInt(symbol_table.size());
+                for (int i = 0; i < symbol_table.size(); i++) {
+                    out.writeUTF(symbol_table.name(i));
+                    out.writeInt(symbol_table.address(i));
+                }
+                out.writeInt(literal_table.size());
+                for (Literal lit : literal_table) {
+                    out.writeUTF(lit.name);
+                    out.writeInt(lit.address);
+                    out.writeInt(lit.pool_no);
+                }
+                out.writeInt(pool_table.size());
+                for (Pool pool : pool_table) {
+                    out.writeInt(pool.start_index);
+                    out.writeInt(pool.literal_count);
                 }
-                if (ic.operandType != null) {
-                    bw.write(" (" + ic.operandType + ", " + ic.operandValue + ")");
+                IntermediateCodeStore ic = intermediate_code;
+                out.writeInt(ic.size);
+                for (int i = 0; i < ic.size; i++) {
+                    out.writeUTF(OPERATIONS[ic.operation[i]].name());
+                    out.writeInt(ic.code[i]);
+                    out.writeInt(ic.reg[i]);
+                    out.writeUTF(ic.operand_type[i] == OperandType.NONE.ordinal() ? "" : OPERAND_TYPES[ic.operand_type[i]].name());
+                    out.writeInt(ic.operand_value[i]);
+                    out.writeInt(ic.lc[i]);
                 }
-                bw.write("\n");
+                out.writeInt(location_counter);
+                out.writeInt(pool_count);
+            } catch (IOException e) {
+                console.println("Error: Unable to write cache file " + filename);
             }
+        }
+
+        // Loads the tables of the previous run, returns its line hashes or null if there is no usable cache
+        long[] load_cache(String filename) {
+            File file = new File(filename);
+            if (!file.exists()) {
+                return null;
+            }
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+                long[] hashes = new long[in.readInt()];
+                for (int i = 0; i < hashes.length; i++) {
+                    hashes[i] = in.readLong();
+                }
+                ArrayList<Checkpoint> cps = new ArrayList<>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    Checkpoint cp = new Checkpoint();
+                    cp.line = in.readInt();
+                    cp.symbols = in.readInt();
+                    cp.literals = in.readInt();
+                    cp.pools = in.readInt();
+                    cp.codes = in.readInt();
+                    cp.location_counter = in.readInt();
+                    cp.pool_count = in.readInt();
+                    cp.pool_literal_count = in.readInt();
+                    cp.last_symbol_address = in.readInt();
+                    cps.add(cp);
+                }
+                SymbolTable symbols = new SymbolTable();
+                for (int n = in.readInt(); n > 0; n--) {
+                    symbols.add(in.readUTF(), in.readInt());
+                }
+                ArrayList<Literal> literals = new ArrayList<>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    literals.add(new Literal(in.readUTF(), in.readInt(), in.readInt()));
+                }
+                ArrayList<Pool> pools = new ArrayList<>();
+                for (int n = in.readInt(); n > 0; n--) {
+                    pools.add(new Pool(in.readInt(), in.readInt()));
+                }
+                IntermediateCodeStore codes = new IntermediateCodeStore();
+                for (int n = in.readInt(); n > 0; n--) {
+                    Operation operation = Operation.valueOf(in.readUTF());
+                    int code = in.readInt();
+                    int reg = in.readInt();
+                    String type = in.readUTF();
+                    codes.add(operation, code, reg, type.isEmpty() ? OperandType.NONE : OperandType.valueOf(type), in.readInt(), in.readInt());
+                }
+                if (cps.isEmpty()) {
+                    return null;
+                }
+
+                checkpoints = cps;
+                symbol_table = symbols;
+                literal_table = literals;
+                pool_table = pools;
+                intermediate_code = codes;
+                location_counter = in.readInt();
+                pool_count = in.readInt();
+                rebuild_pool_index();
+                return hashes;
+            } catch (IOException | IllegalArgumentException e) {
+                console.println("Warning: Ignoring unreadable cache file " + filename);
+                return null;
+            }
+        }
 
-            // Write Pool Table
-            bw.write("\nPool Table:\n");
+        void fill_literal_addresses() {
+            for (int i = pool_table.get(pool_count).start_index; i < literal_table.size(); i++) {
+                if (literal_table.get(i).address == -1) {
+                    literal_table.get(i).address = location_counter++;
+                }
+            }
+        }
+
+        // Literal operands against the literals the pools hold for them
+        void print_pool_statistics() {
+            int references = 0;
+            for (int i = 0; i < intermediate_code.size; i++) {
+                if (intermediate_code.operand_type[i] == OperandType.L.ordinal()) {
+                    references++;
+                }
+            }
+            int largest = 0;
             for (Pool pool : pool_table) {
-                bw.write(pool.start_index + "\n");
+                largest = Math.max(largest, pool.literal_count);
+            }
+            console.println("Literal pools: " + pool_table.size() + ", " + literal_table.size() + " literals for "
+                    + references + " references, largest pool " + largest);
+        }
+
+        void write_output_to_file(String filename) {
+            try {
+                write_output(filename);
+            } catch (IOException e) {
+                console.println("Error: Unable to write to file " + filename);
+            }
+        }
+
+        // write_output_to_file for callers that report the failure themselves
+        void write_output(String filename) throws IOException {
+            try (OutputEncoder out = OutputEncoder.open(filename)) {
+
+                // Write Intermediate Code with LC (Variant I form)
+                out.put("Intermediate Code with LC (Variant I form):\n");
+                IntermediateCodeStore ic = intermediate_code;
+                for (int i = 0; i < ic.size; i++) {
+                    out.put(ic.lc[i]).put(" (").put(OPERATIONS[ic.operation[i]].name()).put(", ").put(ic.code[i]).put(')');
+                    if (ic.reg[i] != -1) {
+                        out.put(" (R, ").put(ic.reg[i]).put(')');
+                    }
+                    if (ic.operand_type[i] != OperandType.NONE.ordinal()) {
+                        out.put(" (").put(OPERAND_TYPES[ic.operand_type[i]].name()).put(", ").put(ic.operand_value[i]).put(')');
+                    }
+                    out.newLine();
+                }
+
+                // Write Pool Table
+                out.put("\nPool Table:\n");
+                for (Pool pool : pool_table) {
+                    out.put(pool.start_index).newLine();
+                }
+
+                // Write Literal Table
+                out.put("\nLiteral Table:\n");
+                for (int i = 0; i < literal_table.size(); i++) {
+                    Literal lit = literal_table.get(i);
+                    out.put(i).put(' ').put(lit.name).put(' ').put(lit.address).newLine();
+                }
+
+                // Write Symbol Table
+                out.put("\nSymbol Table:\n");
+                for (int i = 0; i < symbol_table.size(); i++) {
+                    out.put(i).put(' ').put(symbol_table.name(i)).put(' ').put(symbol_table.address(i)).newLine();
+                }
+            }
+        }
+    }
+
+
+    // Pass-1 over one chunk of a parallel run. The chunk starts with LC 0 and empty tables, so every LC
+    // it gives out belongs to a segment whose offset append_chunk works out: segment 0 starts at the LC
+    // the chunk starts at, a START begins an absolute one, and every LTORG or END that flushes the pool
+    // open before the chunk begins one moved by what that pool holds beyond the chunk's own literals.
+    // Symbols are only looked up in the chunk, append_chunk finds the ones defined before it. ORIGIN and
+    // EQU do not change the LC in this assembler, so they need nothing
+    static class ChunkAssembler extends Assembler {
+        static final int START_SEGMENT = 0, FLUSH_SEGMENT = 1;
+        static final byte LABEL = 0, REFERENCE = 1;
+
+        final int from, to;
+        final ByteArrayOutputStream log = new ByteArrayOutputStream();
+        int segment;                                    // segment of the LCs given out now
+        ArrayList<int[]> segments = new ArrayList<>();  // segment 1 on: kind, LC of the flush, literals placed by then
+        int[] code_segment = new int[1024];             // segment of each intermediate code line
+        int segmented;                                  // lines whose segment is set
+        int[] literal_segment = new int[64];            // segment of each literal address after the first pool
+        byte[] symbol_kind = new byte[256];
+        int[] symbol_segment = new int[256];
+        ArrayList<int[]> set_last = new ArrayList<>();  // DS/DC: symbols before it, LC, segment, log size
+        RuntimeException failure;                       // the line that failed ends the chunk
+
+        ChunkAssembler(int from, int to) {
+            this.from = from;
+            this.to = to;
+            console = new PrintStream(log);
+        }
+
+        ChunkAssembler assemble(SourceFile source) {
+            SourceFile.Line line = source.lines(from, to);
+            try {
+                while (line.next()) {
+                    line.trim();
+                    process_line(line);
+                }
+            } catch (RuntimeException e) {
+                failure = e;
             }
+            set_segments();
+            console.flush();
+            return this;
+        }
+
+        private int chunk_log_size() {
+            console.flush();
+            return log.size();
+        }
 
-            // Write Literal Table
-            bw.write("\nLiteral Table:\n");
-            for (int i = 0; i < literal_table.size(); i++) {
-                Literal lit = literal_table.get(i);
-                bw.write(i + " " + lit.name + " " + lit.address + "\n");
+        // The lines added since the last call get the current segment
+        private void set_segments() {
+            int size = intermediate_code.size();
+            if (size > code_segment.length) {
+                code_segment = Arrays.copyOf(code_segment, Math.max(size, code_segment.length * 2));
             }
+            Arrays.fill(code_segment, segmented, size, segment);
+            segmented = size;
+        }
+
+        @Override
+        int add_symbol(String name, int address) {
+            return add_local_symbol(name, address, LABEL);
+        }
 
-            // Write Symbol Table
-            bw.write("\nSymbol Table:\n");
-            for (int i = 0; i < symbol_table.size(); i++) {
-                Symbol sym = symbol_table.get(i);
-                bw.write(i + " " + sym.name + " " + sym.address + "\n");
+        @Override
+        int symbol_reference(String name) {
+            int index = symbol_table.find(name);
+            return index >= 0 ? index : add_local_symbol(name, location_counter, REFERENCE);
+        }
+
+        private int add_local_symbol(String name, int address, byte kind) {
+            int index = symbol_table.add(name, address);
+            if (index == symbol_kind.length) {
+                symbol_kind = Arrays.copyOf(symbol_kind, index * 2);
+                symbol_segment = Arrays.copyOf(symbol_segment, index * 2);
             }
+            symbol_kind[index] = kind;
+            symbol_segment[index] = segment;
+            return index;
+        }
 
-        } catch (IOException e) {
-            System.out.println("Error: Unable to write to file " + filename);
+        @Override
+        void set_last_symbol_address() {
+            // the last symbol may come from an earlier chunk, append_chunk sets it
+            set_last.add(new int[]{symbol_table.size(), location_counter, segment, chunk_log_size()});
+        }
+
+        @Override
+        void processADInstruction(MOTEntry entry, String opcode, String operand1) {
+            if (opcode.equals("START") && operand1 != null) {
+                set_segments();
+                super.processADInstruction(entry, opcode, operand1);
+                segments.add(new int[]{START_SEGMENT, 0, 0});
+                segment = segments.size(); // the LC is absolute from here on, START's own line included
+                return;
+            }
+            super.processADInstruction(entry, opcode, operand1);
+        }
+
+        @Override
+        void fill_literal_addresses() {
+            set_segments(); // the LTORG or END line is at the LC before the literals
+            if (pool_count == 0) {
+                // append_chunk places this pool again, together with the literals before the chunk
+                int lc = location_counter;
+                super.fill_literal_addresses();
+                segments.add(new int[]{FLUSH_SEGMENT, lc, literal_table.size()});
+                segment = segments.size();
+                return;
+            }
+            if (literal_table.size() > literal_segment.length) {
+                literal_segment = Arrays.copyOf(literal_segment, Math.max(literal_table.size(), literal_segment.length * 2));
+            }
+            for (int i = pool_table.get(pool_count).start_index; i < literal_table.size(); i++) {
+                if (literal_table.get(i).address == -1) {
+                    literal_segment[i] = segment;
+                }
+            }
+            super.fill_literal_addresses();
         }
     }
 
+    // Assembles every input file on a thread pool, each file gets its own Assembler and output file
+    static void assemble_all(List<String> input_filenames) {
+        int threads = Math.min(input_filenames.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(threads, 1));
+        List<Future<String>> results = new ArrayList<>();
+
+        for (String input_filename : input_filenames) {
+            results.add(pool.submit(() -> {
+                String output_filename = output_filename_for(input_filename);
+                Assembler assembler = new Assembler();
+                assembler.read_file_and_process_lines(input_filename);
+                assembler.write_output_to_file(output_filename);
+                return output_filename;
+            }));
+        }
+
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                System.out.println(input_filenames.get(i) + " -> " + results.get(i).get());
+            } catch (InterruptedException | ExecutionException e) {
+                System.out.println("Error: Unable to assemble " + input_filenames.get(i) + ": " + e.getMessage());
+            }
+        }
+        pool.shutdown();
+    }
+
+    static String output_filename_for(String input_filename) {
+        int dot = input_filename.lastIndexOf('.');
+        String base = dot > 0 ? input_filename.substring(0, dot) : input_filename;
+        return base + "_output.txt";
+    }
 
     public static void main(String[] args) {
+        // Incremental mode: sp_ass2 --incremental [input] [output], tables are cached in <output>.cache
+        if (args.length > 0 && args[0].equals("--incremental")) {
+            String input_filename = args.length > 1 ? args[1] : "assembly_code.txt";
+            String output_filename = args.length > 2 ? args[2] : "output.txt";
+            Assembler assembler = new Assembler();
+            assembler.assemble_incremental(input_filename, output_filename, output_filename + ".cache");
+            assembler.print_pool_statistics();
+            System.out.println("Pass-1 Assembler completed. Output written to " + output_filename);
+            return;
+        }
+
+        // Parallel mode: sp_ass2 --parallel N [input] [output] runs pass-1 of one big file on N threads
+        if (args.length > 1 && args[0].equals("--parallel")) {
+            String input_filename = args.length > 2 ? args[2] : "assembly_code.txt";
+            String output_filename = args.length > 3 ? args[3] : "output.txt";
+            Assembler assembler = new Assembler();
+            assembler.read_file_and_process_lines_parallel(input_filename, Math.max(Integer.parseInt(args[1]), 1));
+            assembler.write_output_to_file(output_filename);
+            assembler.print_pool_statistics();
+            System.out.println("Pass-1 Assembler completed. Output written to " + output_filename);
+            return;
+        }
+
+        // Batch mode: sp_ass2 file1.txt file2.txt ... writes file1_output.txt, file2_output.txt ...
+        if (args.length > 0) {
+            assemble_all(Arrays.asList(args));
+            return;
+        }
+
         // Adjust the input ALP filename and output filename accordingly
         String input_filename = "assembly_code.txt";
         String output_filename = "output.txt";
 
-        pool_table.add(new Pool(0, 0));
-        read_file_and_process_lines(input_filename);
-        write_output_to_file(output_filename);
+        Assembler assembler = new Assembler();
+        assembler.read_file_and_process_lines(input_filename);
+        assembler.write_output_to_file(output_filename);
+        assembler.print_pool_statistics();
 
         System.out.println("Pass-1 Assembler completed. Output written to " + output_filename);
     }
@@ -1,11 +1,24 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 public class sp_ass3 {
     private static final Map<String, String[]> MOT = new HashMap<>();
-    private static final Map<Integer, String> symbolTable = new HashMap<>();
-    private static final List<String> intermediateCode = new ArrayList<>();
-    private static final List<String> machineCode = new ArrayList<>();
+    // "index : ... - name" lines of output_ass1.txt, the index kept as the address of the name
+    private static final SymbolTable symbolTable = new SymbolTable();
+    private static String[] symbols = new String[0];
+    // Indexes past the array, so a few large indexes do not size it
+    private static Map<Integer, String> sparseSymbols = new TreeMap<>();
+    // IC lines are kept as their trimmed range in the mapped output_ass1.txt
+    private static SourceFile source = new SourceFile("");
+    private static int[] icStarts = new int[1024];
+    private static int[] icEnds = new int[1024];
+    private static int icCount;
+    // --parallel: pass-2 runs on a fork-join pool of this many threads, 0 translates line by line
+    private static int threads;
+    static final int LEAF_LINES = 4096;
 
     static {
         // Initialize MOT (Machine Operation Table)
@@ -32,36 +45,166 @@ public class sp_ass3 {
         }
     }
 
+    // Everything is printed through one encoder on System.out, flushed in large blocks
     public static void main(String[] args) {
-        readIntermediateCode("output_ass1.txt");
-        printOutput();
+        String outputFile = null;
+        // --parallel N translates the intermediate code on N threads
+        // --output file writes to the file instead of System.out, the parallel blocks go straight to their offsets
+        while (args.length > 1 && (args[0].equals("--parallel") || args[0].equals("--output"))) {
+            if (args[0].equals("--parallel")) {
+                threads = Math.max(Integer.parseInt(args[1]), 1);
+            } else {
+                outputFile = args[1];
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        try (OutputEncoder out = outputFile != null ? OutputEncoder.open(outputFile) : OutputEncoder.to(System.out)) {
+            // --binary reads output_ass1.ic written by sp_ass1 --binary, --dump prints it back as text
+            if (args.length > 0 && ("--binary".equals(args[0]) || "--dump".equals(args[0]))) {
+                ICFile.Reader ic = new ICFile.Reader(args.length > 1 ? args[1] : "output_ass1.ic");
+                if ("--dump".equals(args[0])) {
+                    dumpBinaryCode(ic, out);
+                } else {
+                    translateBinaryCode(ic, out);
+                }
+                return;
+            }
+
+            readIntermediateCode("output_ass1.txt", out);
+            printOutput(out);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
     }
 
-    private static void readIntermediateCode(String filename) {
-        try (BufferedReader br = new BufferedReader(new FileReader(filename))) {
-            String line;
+    private static void dumpBinaryCode(ICFile.Reader ic, OutputEncoder out) throws IOException {
+        out.put("Intermediate Code:").newLine();
+        for (int i = 0; i < ic.recordCount(); i++) {
+            out.put(ic.recordText(i)).newLine();
+        }
+
+        out.newLine().put("Declarative Statements:").newLine();
+        for (int i = 0; i < ic.recordCount(); i++) {
+            if (ic.cls(i) == ICFile.CLS_DC) {
+                out.put(ic.declarationText(i)).newLine();
+            }
+        }
+
+        out.newLine().put("Symbol Table:").newLine();
+        for (int j = 0; j < ic.symbolCount(); j++) {
+            out.put("Label: ").put(ic.symbolName(j)).put(", LC: ").put(ic.symbolLc(j)).newLine();
+        }
+    }
+
+    // Machine code straight from the binary records, symbols are replaced by their LC. The declarative
+    // statements follow as the text pass-2 prints them from the "Declarative Statements:" part of the IC
+    private static void translateBinaryCode(ICFile.Reader ic, OutputEncoder out) throws IOException {
+        SymbolTable addresses = ic.symbols();
+        out.put("Intermediate Code Records: ").put(ic.recordCount()).newLine();
+        out.put("Symbol Table Entries: ").put(ic.symbolCount()).newLine();
+
+        out.newLine().put("Machine Code:").newLine();
+        StringBuilder line = new StringBuilder();
+        if (threads > 0) {
+            translateParallel(ic.recordCount(), out, (from, to, code, separator) -> {
+                for (int i = from; i < to; i++) {
+                    translateRecord(ic, i, addresses, code);
+                    code.append(separator);
+                }
+            });
+        } else {
+            for (int i = 0; i < ic.recordCount(); i++) {
+                line.setLength(0);
+                translateRecord(ic, i, addresses, line);
+                out.put(line).newLine();
+            }
+        }
+
+        line.setLength(0);
+        translateLine("Declarative Statements:", symbols, line);
+        out.put(line).newLine();
+        for (int i = 0; i < ic.recordCount(); i++) {
+            if (ic.cls(i) == ICFile.CLS_DC) {
+                line.setLength(0);
+                translateLine(ic.declarationText(i), symbols, line);
+                out.put(line).newLine();
+            }
+        }
+    }
+
+    private static void translateRecord(ICFile.Reader ic, int i, SymbolTable addresses, StringBuilder line) {
+        byte cls = ic.cls(i);
+        if (cls == ICFile.CLS_AD) {
+            line.append("---");
+            return;
+        }
+        line.append("LC ").append(ic.lc(i)).append(" ");
+        if (cls == ICFile.CLS_UNKNOWN) {
+            line.append("Unknown");
+            return;
+        }
+        if (cls == ICFile.CLS_IS) {
+            line.append(ic.opcode(i));
+        } else {
+            line.append(ICFile.CLASS_NAMES[cls]).append(",").append(ic.opcode(i));
+        }
+
+        for (int k = 0; k < 3; k++) {
+            int value = ic.value(i, k);
+            switch (ic.kind(i, k)) {
+                case ICFile.OP_C:
+                    line.append(" ").append(value);
+                    break;
+                case ICFile.OP_C_TEXT:
+                    line.append(" ").append(ic.name(value));
+                    break;
+                case ICFile.OP_ST:
+                    int symbol = addresses.find(ic.name(value));
+                    line.append(" ");
+                    if (symbol >= 0) {
+                        line.append(addresses.address(symbol));
+                    } else {
+                        line.append("ST,").append(ic.name(value));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private static void readIntermediateCode(String filename, OutputEncoder out) throws IOException {
+        try {
+            source = SourceFile.open(filename);
+            SourceFile.Line line = source.lines();
             boolean isIntermediateCode = false;
             boolean isSymbolTable = false;
 
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                if (line.equals("Intermediate Code:")) {
+            while (line.next()) {
+                line.trim();
+                if (line.contentEquals("Intermediate Code:")) {
                     isIntermediateCode = true;
                     isSymbolTable = false;
                     continue;
-                } else if (line.equals("Symbol Table:")) {
+                } else if (line.contentEquals("Symbol Table:")) {
                     isIntermediateCode = false;
                     isSymbolTable = true;
                     continue;
                 }
 
-                if (isIntermediateCode && !line.isEmpty()) {
-                    intermediateCode.add(line);
-                } else if (isSymbolTable && !line.isEmpty()) {
-                    String[] parts = line.split(":");
+                if (isIntermediateCode && line.length() > 0) {
+                    if (icCount == icStarts.length) {
+                        icStarts = Arrays.copyOf(icStarts, icCount * 2);
+                        icEnds = Arrays.copyOf(icEnds, icCount * 2);
+                    }
+                    icStarts[icCount] = line.start();
+                    icEnds[icCount++] = line.end();
+                } else if (isSymbolTable && line.length() > 0) {
+                    String[] parts = line.toString().split(":");
                     if (parts.length == 2) {
                         String[] symbolInfo = parts[1].trim().split("-");
-                        symbolTable.put(Integer.parseInt(parts[0].trim()), symbolInfo[1].trim());
+                        int index = Integer.parseInt(parts[0].trim());
+                        if (index >= 0) {
+                            symbolTable.add(symbolInfo[1].trim(), index);
+                        }
                     }
                 }
             }
@@ -69,116 +212,252 @@ public class sp_ass3 {
             e.printStackTrace();
         }
 
-        System.out.println("Intermediate Code Lines: " + intermediateCode.size());
-        System.out.println("Symbol Table Entries: " + symbolTable.size());
+        out.put("Intermediate Code Lines: ").put(icCount).newLine();
+        symbols = symbolArray();
+        int entries = sparseSymbols.size();
+        for (String name : symbols) {
+            if (name != null) {
+                entries++;
+            }
+        }
+        out.put("Symbol Table Entries: ").put(entries).newLine();
     }
 
-    private static void generateMachineCode() {
-        for (String line : intermediateCode) {
-            try {
-                String[] parts = line.split("\\s+", 3);
-                if (parts.length < 2) {
-                    System.out.println("Skipping invalid line: " + line);
-                    continue;
-                }
+    private static void printOutput(OutputEncoder out) throws IOException {
+        out.newLine().put("Intermediate Code:").newLine();
+        SourceFile.Line line = source.lines(0, 0);
+        for (int i = 0; i < icCount; i++) {
+            line.set(icStarts[i], icEnds[i]);
+            out.put(line).newLine();
+        }
 
-                String lc = parts[0].replace("LC:", "").trim();
-                StringBuilder machineInstruction = new StringBuilder(lc + " ");
-
-                String[] tokens = parts[1].replaceAll("[()]", "").split(",");
-                for (String token : tokens) {
-                    String[] tokenParts = token.split(",");
-                    String prefix = tokenParts[0];
-                    String value = tokenParts.length > 1 ? tokenParts[1] : "";
-
-                    switch (prefix) {
-                        case "AD":
-                        case "DL":
-                            machineInstruction.append("--");
-                            break;
-                        case "ST":
-                        case "LS":
-                            String[] opInfo = MOT.get(value);
-                            if (opInfo != null) {
-                                machineInstruction.append(opInfo[0]);
-                            } else {
-                                machineInstruction.append(value);
-                            }
-                            break;
-                        case "R":
-                            String[] regInfo = MOT.get(value.toLowerCase());
-                            if (regInfo != null) {
-                                machineInstruction.append(regInfo[0]);
-                            } else {
-                                machineInstruction.append(value);
-                            }
-                            break;
-                        case "C":
-                            machineInstruction.append(value);
-                            break;
-                        default:
-                            machineInstruction.append(value);
-                    }
+        out.newLine().put("Symbol Table:").newLine();
+        for (int index = 0; index < symbols.length; index++) {
+            if (symbols[index] != null) {
+                out.put(index).put(" : ").put(symbols[index]).newLine();
+            }
+        }
+        for (Map.Entry<Integer, String> entry : sparseSymbols.entrySet()) {
+            out.put(entry.getKey()).put(" : ").put(entry.getValue()).newLine();
+        }
+
+        out.newLine().put("Machine Code:").newLine();
+        generateMachineCode(out);
+    }
+
+    // Pass-2: every IC line is scanned once, tokens are read as index ranges of the line and
+    // the machine code of the line is built in one reused buffer
+    private static void generateMachineCode(OutputEncoder out) throws IOException {
+        if (threads > 0) {
+            translateParallel(icCount, out, (from, to, code, separator) -> {
+                SourceFile.Line line = source.lines(0, 0);
+                for (int i = from; i < to; i++) {
+                    line.set(icStarts[i], icEnds[i]);
+                    translateLine(line, symbols, sparseSymbols, code);
+                    code.append(separator);
                 }
+            });
+            return;
+        }
+        StringBuilder code = new StringBuilder();
+
+        SourceFile.Line line = source.lines(0, 0);
+        for (int i = 0; i < icCount; i++) {
+            line.set(icStarts[i], icEnds[i]);
+            code.setLength(0);
+            translateLine(line, symbols, sparseSymbols, code);
+            out.put(code).newLine();
+        }
+    }
+
+    // Machine code of lines [from, to), every line followed by separator
+    interface RangeTranslator {
+        void translate(int from, int to, StringBuilder code, String separator);
+    }
 
-                machineCode.add(machineInstruction.toString());
-            } catch (Exception e) {
-                System.out.println("Error processing line: " + line);
-                e.printStackTrace();
+    // Pass-2 on a fork-join pool: the symbols are complete after pass-1 and only read here, so ranges of
+    // LEAF_LINES lines are translated independently, each into a block of encoded bytes. A few ranges per
+    // thread are in flight, the blocks are handed to OutputEncoder in line order as they complete and on a
+    // file each one is written at the offset the blocks before it end at, on the same pool
+    private static void translateParallel(int lines, OutputEncoder out, RangeTranslator translator) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ArrayDeque<ForkJoinTask<byte[]>> running = new ArrayDeque<>();
+            int next = 0;
+            while (next < lines || !running.isEmpty()) {
+                while (next < lines && running.size() < threads * 4) {
+                    int to = (int) Math.min(lines, (long) next + LEAF_LINES);
+                    running.add(pool.submit(new TranslateTask(translator, next, to, out.lineSeparator())));
+                    next = to;
+                }
+                out.putBlock(running.poll().join(), pool);
             }
+            out.flush(); // waits for the block writes
+        } finally {
+            pool.shutdown();
         }
     }
 
-    private static void printOutput() {
-        System.out.println("\nIntermediate Code:");
-        for (String line : intermediateCode) {
-            System.out.println(line);
+    // One range of lines as an encoded block
+    private static class TranslateTask extends RecursiveTask<byte[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient RangeTranslator translator;
+        private final int from;
+        private final int to;
+        private final String separator;
+
+        TranslateTask(RangeTranslator translator, int from, int to, String separator) {
+            this.translator = translator;
+            this.from = from;
+            this.to = to;
+            this.separator = separator;
         }
 
-        System.out.println("\nSymbol Table:");
-        for (Map.Entry<Integer, String> entry : symbolTable.entrySet()) {
-            System.out.println(entry.getKey() + " : " + entry.getValue());
+        @Override
+        protected byte[] compute() {
+            StringBuilder code = new StringBuilder((to - from) * 24);
+            translator.translate(from, to, code, separator);
+            return OutputEncoder.encode(code);
         }
+    }
 
-        System.out.println("\nMachine Code:");
-        for (String line : intermediateCode){
-            line = line.replace("(","");
-            line = line.replace(")","");
-            line = line.replace(":","");
+    // Symbol index -> name, so ST operands are resolved without a lookup. A later line for the same index wins.
+    // The array is at most a few times the number of entries long, larger indexes go to sparseSymbols
+    private static String[] symbolArray() {
+        long limit = Math.max(1024L, 4L * symbolTable.size());
+        long size = 0;
+        for (int i = 0; i < symbolTable.size(); i++) {
+            size = Math.max(size, Math.min(symbolTable.address(i) + 1L, limit));
+        }
+        String[] symbols = new String[(int) size];
+        sparseSymbols.clear();
+        for (int i = 0; i < symbolTable.size(); i++) {
+            int index = symbolTable.address(i);
+            if (index < symbols.length) {
+                symbols[index] = symbolTable.name(i);
+            } else {
+                sparseSymbols.put(index, symbolTable.name(i));
+            }
+        }
+        return symbols;
+    }
 
-            String[] parts= line.split(" ");
-            for (String part:parts){
-                String[] subpart = part.split(",");
-                String prefix = subpart[0];
-                //System.out.println(prefix);
-                if(Objects.equals(prefix, "IS")){
-                    line = line.replace(part,subpart[1]);
-                } else if (Objects.equals(prefix, "AD")){
-                    line = line.replace(line,"---");
-                } else if (Objects.equals(prefix, "R")){
-                    line = line.replace(part,subpart[1]);
-                } else if (Objects.equals(prefix, "C")){
-                    line = line.replace(part,subpart[1]);
-                } else if (Objects.equals(prefix, "DL")){
+    // Tokens are separated by spaces, brackets and colons are dropped, e.g. "LC: 200 (IS,20) (C,6)"
+    // IS/R/C give their value, AD turns the line into "---", ST,n gives the name of symbol n,
+    // DL,1 drops itself and the "C," of later tokens, any other DL becomes "NULL Character x"
+    static void translateLine(CharSequence line, String[] symbols, StringBuilder out) {
+        translateLine(line, symbols, Collections.emptyMap(), out);
+    }
 
-                    if(Objects.equals(subpart[1], "1")){
-                        line = line.replace(part,"");
-                        line = line.replace("C,","");
-                        break;
-                    }
-                    line = line.replace(part,"NULL Character x");
-                    line = line.replace(parts[3],parts[3].split(",")[1]);
-                } else if (Objects.equals(prefix, "ST")){
-                    for (Map.Entry<Integer, String> entry : symbolTable.entrySet()) {
-                        if(entry.getKey().equals(Integer.parseInt(subpart[1]))) {
-                            line = line.replaceFirst(entry.getValue(),"");
-                            line = line.replace(part,entry.getValue());
-                            line = line.replace("LC","LC:");
-                        }
-                    }
+    // sparse holds the symbols with indexes past the end of the array
+    static void translateLine(CharSequence line, String[] symbols, Map<Integer, String> sparse, StringBuilder out) {
+        int lineStart = out.length();
+        int length = line.length();
+        int tokenIndex = 0;
+        int valueOnlyToken = -1;
+        boolean stripConstants = false;
+        boolean symbolResolved = false;
+        boolean first = true;
+
+        int pos = 0;
+        while (pos < length) {
+            while (pos < length && line.charAt(pos) == ' ') {
+                pos++;
+            }
+            if (pos == length) {
+                break;
+            }
+            int start = pos;
+            while (pos < length && line.charAt(pos) != ' ') {
+                pos++;
+            }
+            int end = pos;
+            while (start < end && line.charAt(start) == '(') {
+                start++;
+            }
+            while (end > start && (line.charAt(end - 1) == ')' || line.charAt(end - 1) == ':')) {
+                end--;
+            }
+            int currentToken = tokenIndex++;
+            if (start == end) {
+                continue;
+            }
+
+            int comma = SourceFile.indexOf(line, ',', start, end);
+            int prefixLength = comma - start;
+
+            if (!first) {
+                out.append(' ');
+            }
+            first = false;
+
+            if (comma == -1) {
+                out.append(line, start, end);
+            } else if (currentToken == valueOnlyToken
+                    || isPrefix(line, start, prefixLength, "IS")
+                    || isPrefix(line, start, prefixLength, "R")
+                    || isPrefix(line, start, prefixLength, "C")) {
+                out.append(line, comma + 1, end);
+            } else if (isPrefix(line, start, prefixLength, "AD")) {
+                out.setLength(lineStart);
+                out.append("---");
+                return;
+            } else if (isPrefix(line, start, prefixLength, "DL")) {
+                if (end - comma == 2 && line.charAt(comma + 1) == '1') {
+                    stripConstants = true;
+                    out.setLength(out.length() - (out.length() > lineStart ? 1 : 0));
+                    first = out.length() == lineStart;
+                } else {
+                    out.append("NULL Character x");
+                    valueOnlyToken = 3;
                 }
+            } else if (isPrefix(line, start, prefixLength, "ST") && !stripConstants) {
+                int index = parseIndex(line, comma + 1, end);
+                String name = index < 0 ? null : index < symbols.length ? symbols[index] : sparse.get(index);
+                if (name != null) {
+                    out.append(name);
+                    symbolResolved = true;
+                } else {
+                    out.append(line, start, end);
+                }
+            } else {
+                out.append(line, start, end);
+            }
+        }
+
+        // a resolved symbol puts the colon back on the LC label
+        if (symbolResolved && out.length() - lineStart >= 2
+                && out.charAt(lineStart) == 'L' && out.charAt(lineStart + 1) == 'C') {
+            out.insert(lineStart + 2, ':');
+        }
+    }
+
+    private static boolean isPrefix(CharSequence line, int start, int length, String prefix) {
+        if (length != prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (line.charAt(start + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Non negative int in line[start, end), -1 if it is not a number
+    private static int parseIndex(CharSequence line, int start, int end) {
+        if (start == end || end - start > 10) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
             }
-            System.out.println(line);
+            value = value * 10 + (c - '0');
         }
+        return value <= Integer.MAX_VALUE ? (int) value : -1;
     }
-}
\ No newline at end of file
+}
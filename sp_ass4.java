@@ -1,6 +1,5 @@
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.atomic.AtomicInteger;
 
 class MNT {
     String name;
@@ -31,13 +30,19 @@ class MNT {
 
 class PNTAB {
     List<String> paramNames = new ArrayList<>();
+    NameTable index = new NameTable();
 
     public void addParam(String param) {
+        index.add(param, paramNames.size());
         paramNames.add(param);
     }
 
     public int getParamIndex(String param) {
-        return paramNames.indexOf(param);
+        return index.get(param);
+    }
+
+    public int getParamIndex(CharSequence chars, int start, int end) {
+        return index.get(chars, start, end);
     }
 
     @Override
@@ -63,11 +68,21 @@ class KPDTAB {
 
 class EVNTAB {
     List<String> expansionVars = new ArrayList<>();
+    NameTable index = new NameTable();
 
     public void addVar(String varName) {
+        index.add(varName, expansionVars.size());
         expansionVars.add(varName);
     }
 
+    public int getVarIndex(String varName) {
+        return index.get(varName);
+    }
+
+    public int getVarIndex(CharSequence chars, int start, int end) {
+        return index.get(chars, start, end);
+    }
+
     @Override
     public String toString() {
         return " " + String.join(" ", expansionVars);
@@ -119,6 +134,74 @@ class MDT {
     }
 }
 
+// Open addressing table from a name to the first index it was added with. Lookups can take
+// the name straight from a char buffer, so scanning a line does not create substrings
+class NameTable {
+    private String[] names = new String[16];
+    private int[] indexes = new int[16];
+    private int size;
+
+    public void add(String name, int index) {
+        if ((size + 1) * 2 > names.length) {
+            resize();
+        }
+        int slot = slot(name, 0, name.length());
+        if (names[slot] == null) {
+            names[slot] = name;
+            indexes[slot] = index;
+            size++;
+        }
+    }
+
+    public int get(CharSequence chars, int start, int end) {
+        int slot = slot(chars, start, end);
+        return names[slot] == null ? -1 : indexes[slot];
+    }
+
+    public int get(String name) {
+        return get(name, 0, name.length());
+    }
+
+    private int slot(CharSequence chars, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + chars.charAt(i);
+        }
+        int mask = names.length - 1;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (names[slot] != null && !matches(names[slot], chars, start, end)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static boolean matches(String name, CharSequence chars, int start, int end) {
+        if (name.length() != end - start) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (name.charAt(i) != chars.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void resize() {
+        String[] oldNames = names;
+        int[] oldIndexes = indexes;
+        names = new String[oldNames.length * 2];
+        indexes = new int[oldNames.length * 2];
+        for (int i = 0; i < oldNames.length; i++) {
+            if (oldNames[i] != null) {
+                int slot = slot(oldNames[i], 0, oldNames[i].length());
+                names[slot] = oldNames[i];
+                indexes[slot] = oldIndexes[i];
+            }
+        }
+    }
+}
+
 class MacroProcessor {
     private List<MNT> mntList = new ArrayList<>();
     private List<PNTAB> pntabList = new ArrayList<>();
@@ -128,32 +211,45 @@ class MacroProcessor {
     private List<SSNTAB> ssntabList = new ArrayList<>();
     private MDT mdt = new MDT();
 
+    // Reads the mapped definition file, every line goes to the scanner as a range of the file
     public void processMacroFile(String fileName) throws IOException {
-        BufferedReader file = new BufferedReader(new FileReader(fileName));
-        String line;
-        boolean isMacro = false;
-        String macroName = "";
-        PNTAB currentPNTAB = new PNTAB();
-        EVNTAB currentEVNTAB = new EVNTAB();
-        SSNTAB currentSSNTAB = new SSNTAB();
-        int posParams = 0, keyParams = 0, mdtPtr = mdt.instructions.size();
-        int kpdtabIndex = kpdtabList.size();
-        AtomicInteger sstabIndex = new AtomicInteger(sstabList.size());
-        boolean hasKeywords = false;
-        int counter = 0;
-
-        while ((line = file.readLine()) != null) {
-            line = trim(line);
-            if (line.startsWith("MACRO")) {
+        DefinitionScanner scanner = new DefinitionScanner();
+        SourceFile source = SourceFile.open(fileName);
+        SourceFile.Line line = source.lines();
+        while (line.next()) {
+            scanner.scanLine(source, line.start(), line.end());
+        }
+    }
+
+    // State of processMacroFile between lines
+    private class DefinitionScanner {
+        private final StringBuilder line = new StringBuilder();        // current line, trimmed
+        private final StringBuilder instruction = new StringBuilder(); // MDT line being built
+        private final StringBuilder scratch = new StringBuilder();
+        private boolean isMacro = false;
+        private String macroName = "";
+        private PNTAB currentPNTAB = new PNTAB();
+        private EVNTAB currentEVNTAB = new EVNTAB();
+        private SSNTAB currentSSNTAB = new SSNTAB();
+        private int posParams = 0, keyParams = 0, mdtPtr = mdt.instructions.size();
+        private int kpdtabIndex = kpdtabList.size();
+        private int sstabIndex = sstabList.size();
+        private boolean hasKeywords = false;
+        private int counter = 0;
+
+        void scanLine(CharSequence chars, int start, int end) {
+            line.setLength(0);
+            appendTrimmed(line, chars, start, end);
+            if (startsWith(line, "MACRO")) {
                 isMacro = true;
                 currentEVNTAB = new EVNTAB();
                 currentSSNTAB = new SSNTAB();
-                continue;
-            } else if (line.startsWith("MEND")) {
+                return;
+            } else if (startsWith(line, "MEND")) {
                 isMacro = false;
                 counter--;
-                MNT mnt = new MNT(macroName, posParams, keyParams, currentEVNTAB.expansionVars.size(), mdtPtr, 
-                                  hasKeywords ? kpdtabIndex : -1, sstabIndex.get());
+                MNT mnt = new MNT(macroName, posParams, keyParams, currentEVNTAB.expansionVars.size(), mdtPtr,
+                                  hasKeywords ? kpdtabIndex : -1, sstabIndex);
                 mntList.add(mnt);
                 mdtPtr = mdt.instructions.size();
                 pntabList.add(currentPNTAB);
@@ -163,141 +259,367 @@ class MacroProcessor {
                 currentPNTAB = new PNTAB();
                 macroName = "";
                 kpdtabIndex = kpdtabList.size();
-                sstabIndex.set(sstabList.size());
-                continue;
+                sstabIndex = sstabList.size();
+                return;
             }
 
             if (isMacro) {
                 if (macroName.isEmpty()) {
                     counter--;
-                    String[] parts = line.split(" ");
-                    macroName = parts[0];
-                    for (int i = 1; i < parts.length; i++) {
-                        String par = parts[i];
-                        if (par.charAt(0) == '.') {
-                            sstabList.add(new SSTAB(par, counter++));
-                            currentPNTAB.addParam(par);
-                            posParams++;
-                        }
-                        String[] parax = par.split(",");
-                        for (String param : parax) {
-                            if (param.contains("=")) {
-                                String[] keyValue = param.split("=");
-                                kpdtabList.add(new KPDTAB(keyValue[0], keyValue[1]));
-                                currentPNTAB.addParam(keyValue[0]);
-                                posParams++;
-                                keyParams++;
-                                hasKeywords = true;
-                            } else {
-                                currentPNTAB.addParam(param);
-                                posParams++;
-                            }
-                        }
+                    scanPrototype();
+                } else if (startsWith(line, "LCL")) {
+                    scanLocals();
+                } else {
+                    scanStatement();
+                }
+            }
+            counter++;
+        }
+
+        // Macro name, then parameters: .SEQ, &PARAM, &KEY=DEFAULT, comma separated
+        private void scanPrototype() {
+            int length = line.length();
+            int nameEnd = indexOf(line, ' ', 0, length);
+            macroName = line.substring(0, nameEnd);
+            for (int start = nameEnd + 1; start < length; ) {
+                int end = indexOf(line, ' ', start, length);
+                if (line.charAt(start) == '.') {
+                    String par = line.substring(start, end);
+                    sstabList.add(new SSTAB(par, counter++));
+                    currentPNTAB.addParam(par);
+                    posParams++;
+                }
+                int last = splitEnd(line, start, end, ',');
+                for (int p = start; last >= 0; ) {
+                    int pEnd = indexOf(line, ',', p, last);
+                    int equals = indexOf(line, '=', p, pEnd);
+                    if (equals < pEnd) {
+                        String paramName = line.substring(p, equals);
+                        String defaultValue = line.substring(equals + 1, indexOf(line, '=', equals + 1, pEnd));
+                        kpdtabList.add(new KPDTAB(paramName, defaultValue));
+                        currentPNTAB.addParam(paramName);
+                        posParams++;
+                        keyParams++;
+                        hasKeywords = true;
+                    } else {
+                        currentPNTAB.addParam(line.substring(p, pEnd));
+                        posParams++;
                     }
-                } else if (line.startsWith("LCL")) {
-                    String[] vars = line.substring(3).split(",");
-                    for (String var : vars) {
-                        currentEVNTAB.addVar(trim(var));
-                        int evIndex = currentEVNTAB.expansionVars.indexOf(var);
-                        mdt.addInstruction(replaceAll(line, var, "(E," + evIndex + ") "));
+                    if (pEnd == last) {
+                        break;
                     }
-                } else {
-                    String[] tokens = line.split(" ");
-                    StringBuilder replacedInstruction = new StringBuilder();
-                    String symbolName = "";
-
-                    for (String token : tokens) {
-                        if (token.charAt(0) == '.') {
-                            symbolName = token.substring(1);
-                            currentSSNTAB.addSymbol(symbolName);
-                            sstabList.add(new SSTAB(symbolName, counter));
-                        } else if (token.contains(",")) {
-                            String[] subTokens = token.split(",");
-                            for (String subToken : subTokens) {
-                                int index = currentPNTAB.getParamIndex(subToken);
-                                if (index != -1) {
-                                    replacedInstruction.append(" (P,").append(index + 1).append(")");
-                                } else if (currentEVNTAB.expansionVars.contains(subToken)) {
-                                    int evIndex = currentEVNTAB.expansionVars.indexOf(subToken) + 1;
-                                    replacedInstruction.append(" (E,").append(evIndex).append(")");
-                                } else {
-                                    replacedInstruction.append(subToken);
-                                }
-                            }
-                            replacedInstruction.append(" ");
-                        } else {
-                            int index = currentPNTAB.getParamIndex(token);
-                            if (index != -1) {
-                                replacedInstruction.append(" (P,").append(index + 1).append(")");
-                            } else if (currentEVNTAB.expansionVars.contains(token)) {
-                                int evIndex = currentEVNTAB.expansionVars.indexOf(token) + 1;
-                                replacedInstruction.append(" (E,").append(evIndex).append(")");
-                            } else {
-                                replacedInstruction.append(token);
-                            }
+                    p = pEnd + 1;
+                }
+                start = end + 1;
+            }
+        }
+
+        // LCL &A,&B adds the variables and one MDT line per variable
+        private void scanLocals() {
+            int length = line.length();
+            int last = splitEnd(line, 3, length, ',');
+            for (int v = 3; last >= 0; ) {
+                int vEnd = indexOf(line, ',', v, last);
+                String var = line.substring(v, vEnd);
+                scratch.setLength(0);
+                appendTrimmed(scratch, var, 0, var.length());
+                currentEVNTAB.addVar(scratch.toString());
+                int evIndex = currentEVNTAB.getVarIndex(var);
+                mdt.addInstruction(replaceLiteral(line, var, "(E," + evIndex + ") "));
+                if (vEnd == last) {
+                    break;
+                }
+                v = vEnd + 1;
+            }
+        }
+
+        // Model statement: parameters and expansion variables become (P,n) and (E,n), .SEQ defines a sequencing symbol
+        private void scanStatement() {
+            int length = line.length();
+            StringBuilder replacedInstruction = scratch;
+            replacedInstruction.setLength(0);
+            String symbolName = "";
+            for (int start = 0; start < length; ) {
+                int end = indexOf(line, ' ', start, length);
+                if (line.charAt(start) == '.') {
+                    symbolName = line.substring(start + 1, end);
+                    currentSSNTAB.addSymbol(symbolName);
+                    sstabList.add(new SSTAB(symbolName, counter));
+                } else if (indexOf(line, ',', start, end) < end) {
+                    int last = splitEnd(line, start, end, ',');
+                    for (int t = start; last >= 0; ) {
+                        int tEnd = indexOf(line, ',', t, last);
+                        appendOperand(replacedInstruction, t, tEnd);
+                        if (tEnd == last) {
+                            break;
                         }
+                        t = tEnd + 1;
                     }
-                    mdt.addInstruction(replaceAll(trim(replacedInstruction.toString()), "." + symbolName, ""));
+                    replacedInstruction.append(" ");
+                } else {
+                    appendOperand(replacedInstruction, start, end);
                 }
+                start = end + 1;
+            }
+            instruction.setLength(0);
+            appendTrimmed(instruction, replacedInstruction, 0, replacedInstruction.length());
+            mdt.addInstruction(removeSequencingSymbol(instruction, symbolName));
+        }
+
+        private void appendOperand(StringBuilder out, int start, int end) {
+            int index = currentPNTAB.getParamIndex(line, start, end);
+            if (index != -1) {
+                out.append(" (P,").append(index + 1).append(")");
+                return;
+            }
+            int evIndex = currentEVNTAB.getVarIndex(line, start, end);
+            if (evIndex != -1) {
+                out.append(" (E,").append(evIndex + 1).append(")");
+            } else {
+                out.append(line, start, end);
             }
-            counter++;
         }
-        file.close();
     }
 
-    public void printTables(String fileName) throws IOException {
-        BufferedWriter file = new BufferedWriter(new FileWriter(fileName));
+    // Appends chars[start, end) stripped, with every run of whitespace inside turned into one space
+    static void appendTrimmed(StringBuilder out, CharSequence chars, int start, int end) {
+        while (start < end && Character.isWhitespace(chars.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(chars.charAt(end - 1))) {
+            end--;
+        }
+        boolean inSpace = false;
+        for (int i = start; i < end; i++) {
+            char c = chars.charAt(i);
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r') {
+                if (!inSpace) {
+                    out.append(' ');
+                }
+                inSpace = true;
+            } else {
+                out.append(c);
+                inSpace = false;
+            }
+        }
+    }
 
-        file.write("MNT:\n");
-        for (MNT mnt : mntList) {
-            file.write(mnt.toString() + "\n");
+    static boolean startsWith(CharSequence chars, String prefix) {
+        if (chars.length() < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (chars.charAt(i) != prefix.charAt(i)) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        file.write("\nMDT:\n");
-        for (String line : mdt.instructions) {
-            file.write(line + "\n");
+    // Position of c in chars[start, end), or end
+    static int indexOf(CharSequence chars, char c, int start, int end) {
+        while (start < end && chars.charAt(start) != c) {
+            start++;
         }
+        return start;
+    }
 
-        file.write("\nPNTAB:\n");
-        for (PNTAB pntab : pntabList) {
-            file.write(" [" + String.join(", ", pntab.paramNames).replace("&", "") + "]\n");
+    // End of the pieces String.split keeps for chars[start, end): trailing separators are dropped,
+    // -1 when only separators are left
+    static int splitEnd(CharSequence chars, int start, int end, char separator) {
+        int last = end;
+        while (last > start && chars.charAt(last - 1) == separator) {
+            last--;
         }
+        return last == start && last < end ? -1 : last;
+    }
 
-        file.write("\nKPDTAB:\n");
-        for (KPDTAB kpdtab : kpdtabList) {
-            file.write(kpdtab.toString().replace("&", "") + "\n");
+    // Every occurrence of target replaced, an empty target matches before each char and at the end
+    static String replaceLiteral(CharSequence chars, String target, String replacement) {
+        StringBuilder out = new StringBuilder(chars.length() + replacement.length());
+        int length = chars.length();
+        if (target.isEmpty()) {
+            for (int i = 0; i < length; i++) {
+                out.append(replacement).append(chars.charAt(i));
+            }
+            return out.append(replacement).toString();
         }
+        int i = 0;
+        while (i < length) {
+            if (regionMatches(chars, i, target)) {
+                out.append(replacement);
+                i += target.length();
+            } else {
+                out.append(chars.charAt(i++));
+            }
+        }
+        return out.toString();
+    }
 
-        file.write("\nEVNTAB:\n");
-        for (EVNTAB evntab : evntabList) {
-            file.write(evntab.toString().replace("&", "") + "\n");
+    // Removes any char followed by symbolName, as the regex "." + symbolName does. With no
+    // sequencing symbol on the line that is every char, so such MDT lines come out empty
+    static String removeSequencingSymbol(CharSequence chars, String symbolName) {
+        StringBuilder out = new StringBuilder();
+        int length = chars.length();
+        int i = 0;
+        while (i < length) {
+            int c = Character.codePointAt(chars, i);
+            int width = Character.charCount(c);
+            if (c != '\n' && c != '\r' && c != '\u0085' && c != '\u2028' && c != '\u2029'
+                    && regionMatches(chars, i + width, symbolName)) {
+                i += width + symbolName.length();
+            } else {
+                out.append(chars.charAt(i++));
+            }
         }
+        return out.toString();
+    }
 
-        file.write("\nSSNTAB:\n");
-        for (SSNTAB ssntab : ssntabList) {
-            file.write(ssntab.toString().replace("&", "") + "\n");
+    private static boolean regionMatches(CharSequence chars, int start, String s) {
+        if (start + s.length() > chars.length()) {
+            return false;
+        }
+        for (int i = 0; i < s.length(); i++) {
+            if (chars.charAt(start + i) != s.charAt(i)) {
+                return false;
+            }
         }
+        return true;
+    }
 
-        file.write("\nSSTAB:\n");
-        for (SSTAB sstab : sstabList) {
-            file.write(sstab.toString() + "\n");
+    public void printTables(String fileName) throws IOException {
+        try (OutputEncoder file = OutputEncoder.open(fileName)) {
+            file.put("MNT:\n");
+            for (MNT mnt : mntList) {
+                file.put(" Name=").put(mnt.name).put(", PosParams=").put(mnt.posParams)
+                        .put(", KeyParams=").put(mnt.keyParams).put(", ExpVars=").put(mnt.expansionVars)
+                        .put(", MDT Ptr=").put(mnt.mdtPtr).put(", KPDTAB Ptr=").put(mnt.kpdtPtr)
+                        .put(", SST Ptr=").put(mnt.sstPtr).newLine();
+            }
+
+            file.put("\nMDT:\n");
+            for (String line : mdt.instructions) {
+                file.put(line).newLine();
+            }
+
+            file.put("\nPNTAB:\n");
+            for (PNTAB pntab : pntabList) {
+                file.put(" [");
+                putNames(file, pntab.paramNames, ", ");
+                file.put(']').newLine();
+            }
+
+            file.put("\nKPDTAB:\n");
+            for (KPDTAB kpdtab : kpdtabList) {
+                file.put(' ');
+                putName(file, kpdtab.paramName);
+                file.put(" = ");
+                putName(file, kpdtab.defaultValue);
+                file.newLine();
+            }
+
+            file.put("\nEVNTAB:\n");
+            for (EVNTAB evntab : evntabList) {
+                file.put(' ');
+                putNames(file, evntab.expansionVars, " ");
+                file.newLine();
+            }
+
+            file.put("\nSSNTAB:\n");
+            for (SSNTAB ssntab : ssntabList) {
+                file.put(' ');
+                putNames(file, ssntab.symbolNames, " ");
+                file.newLine();
+            }
+
+            file.put("\nSSTAB:\n");
+            for (SSTAB sstab : sstabList) {
+                file.put(sstab.symbolName).put(": ").put(sstab.locationInMDT).newLine();
+            }
         }
-        file.close();
     }
 
-    public String trim(String str) {
-        return str.strip().replaceAll("\\s+", " ");
+    // Names are printed without '&', as toString().replace("&", "") did
+    private static void putNames(OutputEncoder file, List<String> names, String separator) throws IOException {
+        for (int i = 0; i < names.size(); i++) {
+            if (i > 0) {
+                file.put(separator);
+            }
+            putName(file, names.get(i));
+        }
     }
 
-    public String replaceAll(String source, String toReplace, String replaceWith) {
-        return source.replaceAll(toReplace, replaceWith);
+    private static void putName(OutputEncoder file, String name) throws IOException {
+        int start = 0;
+        int amp;
+        while ((amp = name.indexOf('&', start)) >= 0) {
+            file.put(name, start, amp);
+            start = amp + 1;
+        }
+        file.put(name, start, name.length());
+    }
+
+    // Same tables as printTables, as a MacroLibrary file that sp_ass5 can map instead of parsing
+    public void printBinaryTables(String fileName) throws IOException {
+        MacroLibrary.Writer library = new MacroLibrary.Writer();
+        writeTables(library);
+        library.write(fileName);
+    }
+
+    // Hands every table entry to sink, names without '&' as in the printed tables
+    public void writeTables(MacroLibrary.Sink library) {
+        for (int i = 0; i < mntList.size(); i++) {
+            MNT mnt = mntList.get(i);
+            library.addMacro(mnt.name, mnt.posParams, mnt.keyParams, mnt.expansionVars, mnt.mdtPtr, mnt.kpdtPtr, mnt.sstPtr,
+                    stripAmpersands(i < pntabList.size() ? pntabList.get(i).paramNames : Collections.emptyList()),
+                    stripAmpersands(i < evntabList.size() ? evntabList.get(i).expansionVars : Collections.emptyList()),
+                    stripAmpersands(i < ssntabList.size() ? ssntabList.get(i).symbolNames : Collections.emptyList()));
+        }
+        for (String line : mdt.instructions) {
+            library.addMdtLine(line);
+        }
+        for (KPDTAB kpdtab : kpdtabList) {
+            library.addKeyword(kpdtab.paramName.replace("&", ""), kpdtab.defaultValue.replace("&", ""));
+        }
+        for (SSTAB sstab : sstabList) {
+            library.addSequencingSymbol(sstab.symbolName, sstab.locationInMDT);
+        }
+    }
+
+    private List<String> stripAmpersands(List<String> names) {
+        List<String> stripped = new ArrayList<>(names.size());
+        for (String name : names) {
+            stripped.add(name.replace("&", ""));
+        }
+        return stripped;
     }
 }
 
 public class sp_ass4 {
+    // Processes a definition file and hands its tables to sink instead of writing them out
+    static void defineMacros(String fileName, MacroLibrary.Sink sink) throws IOException {
+        MacroProcessor processor = new MacroProcessor();
+        processor.processMacroFile(fileName);
+        processor.writeTables(sink);
+    }
+
+    // Processes a definition file and writes its tables, as text or as a binary library
+    static void defineMacros(String fileName, String tablesFile, boolean binary) throws IOException {
+        MacroProcessor processor = new MacroProcessor();
+        processor.processMacroFile(fileName);
+        if (binary) {
+            processor.printBinaryTables(tablesFile);
+        } else {
+            processor.printTables(tablesFile);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
         MacroProcessor processor = new MacroProcessor();
         processor.processMacroFile("assembly_code_ass4.txt");
         processor.printTables("output_ass4.txt");
+        if (args.length > 0 && args[0].equals("--binary")) {
+            processor.printBinaryTables("output_ass4.mlb");
+        }
     }
 }
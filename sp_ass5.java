@@ -1,66 +1,163 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
-class MNT {
-    String name;
-    int posParams;
-    int keyParams;
-    int mdtPtr;
-    int kpdtPtr;
-    int sstPtr;
-
-    MNT(String name, int posParams, int keyParams, int mdtPtr, int kpdtPtr, int sstPtr) {
-        this.name = name;
-        this.posParams = posParams;
-        this.keyParams = keyParams;
-        this.mdtPtr = mdtPtr;
-        this.kpdtPtr = kpdtPtr;
-        this.sstPtr = sstPtr;
+public class sp_ass5 {
+    static class MNT {
+        String name;
+        int posParams;
+        int keyParams;
+        int mdtPtr;
+        int kpdtPtr;
+        int sstPtr;
+
+        // Filled in by prepareMacro once the tables are loaded
+        List<String> pntab = Collections.emptyList();
+        Map<String, Integer> paramIndex = new HashMap<>(); // parameter name -> first PNTAB index
+        int[] paramSlot;                                    // PNTAB index -> slot holding its value
+        List<KPDTAB> keywords = Collections.emptyList();   // this macro's KPDTAB entries
+        MdtTemplate[] body;
+
+        MNT(String name, int posParams, int keyParams, int mdtPtr, int kpdtPtr, int sstPtr) {
+            this.name = name;
+            this.posParams = posParams;
+            this.keyParams = keyParams;
+            this.mdtPtr = mdtPtr;
+            this.kpdtPtr = kpdtPtr;
+            this.sstPtr = sstPtr;
+        }
     }
-}
 
-class KPDTAB {
-    String paramName;
-    String defaultValue;
+    static class KPDTAB {
+        String paramName;
+        String defaultValue;
 
-    KPDTAB(String paramName, String defaultValue) {
-        this.paramName = paramName;
-        this.defaultValue = defaultValue;
+        KPDTAB(String paramName, String defaultValue) {
+            this.paramName = paramName;
+            this.defaultValue = defaultValue;
+        }
     }
-}
 
-class SSTAB {
-    String symbolName;
-    int locationInMDT;
+    static class SSTAB {
+        String symbolName;
+        int locationInMDT;
 
-    SSTAB(String symbolName, int locationInMDT) {
-        this.symbolName = symbolName;
-        this.locationInMDT = locationInMDT;
+        SSTAB(String symbolName, int locationInMDT) {
+            this.symbolName = symbolName;
+            this.locationInMDT = locationInMDT;
+        }
     }
-}
 
-class APTAB {
-    String macroName;
-    List<String> arguments;
-    int lineNumber;
+    // An MDT line split at its (PARAM) references: text[0] slots[0] text[1] ... text[n]
+    static class MdtTemplate {
+        String[] text;
+        int[] slots;
 
-    APTAB(String macroName, List<String> arguments, int lineNumber) {
-        this.macroName = macroName;
-        this.arguments = arguments;
-        this.lineNumber = lineNumber;
+        MdtTemplate(String[] text, int[] slots) {
+            this.text = text;
+            this.slots = slots;
+        }
     }
 
-    @Override
-    public String toString() {
-        return "APTAB{" +
-                "macroName='" + macroName + '\'' +
-                ", arguments=" + arguments +
-                ", lineNumber=" + lineNumber +
-                '}';
+    static class APTAB {
+        String macroName;
+        List<String> arguments;
+        int lineNumber;
+
+        APTAB(String macroName, List<String> arguments, int lineNumber) {
+            this.macroName = macroName;
+            this.arguments = arguments;
+            this.lineNumber = lineNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "APTAB{" +
+                    "macroName='" + macroName + '\'' +
+                    ", arguments=" + arguments +
+                    ", lineNumber=" + lineNumber +
+                    '}';
+        }
+    }
+
+    // LRU cache of expanded blocks keyed by macro, nesting level and bound parameter values.
+    // Bounded by the chars it holds, 0 turns it off
+    static class ExpansionCache {
+        static final long DEFAULT_CHARS = 8L << 20;
+
+        private final LinkedHashMap<String, String> blocks = new LinkedHashMap<>(256, 0.75f, true);
+        private final long maxChars;
+        private long chars;
+        long hits, misses, evictions;
+
+        ExpansionCache(long maxChars) {
+            this.maxChars = maxChars;
+        }
+
+        boolean enabled() {
+            return maxChars > 0;
+        }
+
+        String get(String key) {
+            String block = blocks.get(key);
+            if (block != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return block;
+        }
+
+        void put(String key, String block) {
+            long size = key.length() + block.length();
+            if (size > maxChars) {
+                return;
+            }
+            String old = blocks.put(key, block);
+            if (old != null) {
+                chars -= key.length() + old.length();
+            }
+            chars += size;
+            Iterator<Map.Entry<String, String>> eldest = blocks.entrySet().iterator();
+            while (chars > maxChars) {
+                Map.Entry<String, String> entry = eldest.next();
+                chars -= entry.getKey().length() + entry.getValue().length();
+                eldest.remove();
+                evictions++;
+            }
+        }
+
+        void addStats(ExpansionCache other) {
+            hits += other.hits;
+            misses += other.misses;
+            evictions += other.evictions;
+        }
+
+        @Override
+        public String toString() {
+            return "Expansion cache: " + hits + " hits, " + misses + " misses, " + evictions + " evictions, "
+                    + blocks.size() + " blocks (" + chars + " chars)";
+        }
+    }
+
+    // One macro being expanded, the top of the stack is the innermost call
+    static class ExpansionFrame {
+        APTAB aptab;      // call on the source line that started the expansion
+        MNT mnt;
+        String[] values;  // PNTAB slot -> actual parameter
+        String key;       // cache key, null when the cache is off
+        int next;         // next MDT template to expand
+        int outputStart;  // where this call's output starts in the expansion buffer
+
+        ExpansionFrame(APTAB aptab, MNT mnt, String[] values, String key, int outputStart) {
+            this.aptab = aptab;
+            this.mnt = mnt;
+            this.values = values;
+            this.key = key;
+            this.outputStart = outputStart;
+        }
     }
-}
 
-public class sp_ass5 {
     private List<MNT> mntList = new ArrayList<>();
     private List<List<String>> pntabList = new ArrayList<>();
     private List<KPDTAB> kpdtabList = new ArrayList<>();
@@ -69,6 +166,37 @@ public class sp_ass5 {
     private List<List<String>> ssntabList = new ArrayList<>();
     private List<List<String>> evntabList = new ArrayList<>();
     private List<APTAB> aptabList = new ArrayList<>(); // List for APTAB entries
+    private Map<String, MNT> macroDirectory = new HashMap<>(); // Macro name -> MNT entry
+    private MacroLibrary.Reader library;                        // Set by loadLibrary, macros are read on first use
+    private StringBuilder lineBuffer = new StringBuilder();
+    private StringBuilder expansionBuffer = new StringBuilder(); // Output of the call being expanded
+    private ExpansionCache expansionCache = new ExpansionCache(ExpansionCache.DEFAULT_CHARS);
+    private int maxDepth = 1;                                    // 1 = calls inside a macro body are not expanded
+    private boolean inMacroExpansion;                            // Source state, between START and END
+    private int lineNumber;
+    private PrintStream console = System.out;
+
+    static final int CHUNK_LINES = 8192;
+    static final int PIPELINE_BATCH = 256;  // lines per hand-over between pipeline stages
+    static final int PIPELINE_QUEUE = 16;   // batches waiting for the assembler
+
+    // Source lines [from, to) of the mapped file expanded by one worker, with the state at its first line and its results
+    static class Chunk {
+        int from;
+        int to;
+        boolean inMacroExpansion;
+        int lineNumber;
+        String output;
+        byte[] log;
+        List<APTAB> aptabs;
+        ExpansionCache cache;
+
+        Chunk(int from, boolean inMacroExpansion, int lineNumber) {
+            this.from = from;
+            this.inMacroExpansion = inMacroExpansion;
+            this.lineNumber = lineNumber;
+        }
+    }
 
     public void readTables(String fileName) {
         try (BufferedReader br = new BufferedReader(new FileReader(fileName))) {
@@ -129,108 +257,626 @@ public class sp_ass5 {
         } catch (IOException e) {
             System.err.println("Error reading tables file: " + e.getMessage());
         }
+        buildMacroDirectory();
+    }
+
+    // Hashes every macro by name and gives it its PNTAB, KPDTAB end and MDT end,
+    // so a call does not have to search mntList
+    private void buildMacroDirectory() {
+        macroDirectory.clear();
+        for (int i = 0; i < mntList.size(); i++) {
+            MNT mnt = mntList.get(i);
+            int kpdtStart = mnt.kpdtPtr < 0 ? kpdtabList.size() : Math.min(mnt.kpdtPtr, kpdtabList.size());
+            int kpdtEnd = Math.max(kpdtStart, Math.min(mnt.kpdtPtr + mnt.keyParams, kpdtabList.size()));
+            int mdtEnd = i < mntList.size() - 1 ? mntList.get(i + 1).mdtPtr : mdt.size();
+            int bodyStart = Math.max(0, Math.min(mnt.mdtPtr, mdt.size()));
+            int bodyEnd = Math.max(bodyStart, Math.min(mdtEnd, mdt.size()));
+
+            prepareMacro(mnt, i < pntabList.size() ? pntabList.get(i) : Collections.emptyList(),
+                    kpdtabList.subList(kpdtStart, kpdtEnd), mdt.subList(bodyStart, bodyEnd));
+            macroDirectory.putIfAbsent(mnt.name, mnt);
+        }
+    }
+
+    // Loads every macro of the library so findMNT never changes the directory
+    private void loadAllMacros() {
+        for (int i = 0; i < library.macroCount(); i++) {
+            String name = library.name(i);
+            if (!macroDirectory.containsKey(name)) {
+                macroDirectory.put(name, loadMacro(i));
+            }
+        }
+    }
+
+    // Uses a binary macro library (see MacroLibrary) instead of the text tables. Nothing is parsed
+    // up front, findMNT looks a macro up in the mapped file the first time it is called
+    public void loadLibrary(String fileName) throws IOException {
+        library = new MacroLibrary.Reader(fileName);
+        macroDirectory.clear();
+    }
+
+    // Runs sp_ass4 on the definition file and takes its tables as they are, the same tables
+    // a --library run reads but without the file
+    public void loadTables(String definitionFile) throws IOException {
+        sp_ass4.defineMacros(definitionFile, new TableSink());
+        buildMacroDirectory();
+    }
+
+    private class TableSink implements MacroLibrary.Sink {
+        public void addMacro(String name, int posParams, int keyParams, int expansionVars, int mdtPtr, int kpdtPtr, int sstPtr,
+                             List<String> params, List<String> expansionVarNames, List<String> sequencingSymbols) {
+            mntList.add(new MNT(name, posParams, keyParams, mdtPtr, kpdtPtr, sstPtr));
+            pntabList.add(params);
+            evntabList.add(expansionVarNames);
+            ssntabList.add(sequencingSymbols);
+        }
+
+        public void addMdtLine(String line) {
+            mdt.add(line);
+        }
+
+        public void addKeyword(String paramName, String defaultValue) {
+            kpdtabList.add(new KPDTAB(paramName, defaultValue));
+        }
+
+        public void addSequencingSymbol(String symbolName, int locationInMDT) {
+            sstabList.add(new SSTAB(symbolName, locationInMDT));
+        }
+    }
+
+    private MNT loadMacro(int index) {
+        MNT mnt = new MNT(library.name(index), library.posParams(index), library.keyParams(index),
+                library.mdtPtr(index), library.kpdtPtr(index), library.sstPtr(index));
+
+        List<KPDTAB> keywords = new ArrayList<>();
+        int kpdtEnd = Math.min(mnt.kpdtPtr + mnt.keyParams, library.kpdtabCount());
+        for (int k = mnt.kpdtPtr; k >= 0 && k < kpdtEnd; k++) {
+            keywords.add(new KPDTAB(library.kpdtName(k), library.kpdtDefault(k)));
+        }
+
+        int mdtEnd = index < library.macroCount() - 1 ? library.mdtPtr(index + 1) : library.mdtCount();
+        List<String> body = new ArrayList<>();
+        for (int j = Math.max(0, mnt.mdtPtr); j < Math.min(mdtEnd, library.mdtCount()); j++) {
+            body.add(library.mdtLine(j));
+        }
+
+        prepareMacro(mnt, library.pntab(index), keywords, body);
+        return mnt;
+    }
+
+    // Gives a macro its PNTAB, keyword defaults and compiled MDT lines
+    private static void prepareMacro(MNT mnt, List<String> pntab, List<KPDTAB> keywords, List<String> body) {
+        mnt.pntab = pntab;
+        mnt.keywords = keywords;
+        mnt.paramIndex = new HashMap<>();
+        mnt.paramSlot = new int[pntab.size()];
+        for (int j = 0; j < pntab.size(); j++) {
+            mnt.paramIndex.putIfAbsent(pntab.get(j), j);
+            mnt.paramSlot[j] = mnt.paramIndex.get(pntab.get(j));
+        }
+        mnt.body = new MdtTemplate[body.size()];
+        for (int j = 0; j < body.size(); j++) {
+            mnt.body[j] = compileTemplate(body.get(j), mnt.paramIndex);
+        }
+    }
+
+    private static MdtTemplate compileTemplate(String line, Map<String, Integer> paramIndex) {
+        List<String> text = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+        int segmentStart = 0;
+        int pos = 0;
+        int open;
+        while ((open = line.indexOf('(', pos)) >= 0) {
+            int close = line.indexOf(')', open + 1);
+            if (close < 0) {
+                break;
+            }
+            Integer index = paramIndex.get(line.substring(open + 1, close));
+            if (index == null) {
+                pos = open + 1;
+                continue;
+            }
+            text.add(line.substring(segmentStart, open));
+            slots.add(index);
+            segmentStart = pos = close + 1;
+        }
+        text.add(line.substring(segmentStart));
+
+        int[] slotArray = new int[slots.size()];
+        for (int i = 0; i < slotArray.length; i++) {
+            slotArray[i] = slots.get(i);
+        }
+        return new MdtTemplate(text.toArray(new String[0]), slotArray);
     }
 
     public void processSourceFile(String inputFile, String outputFile) {
-        try (BufferedReader br = new BufferedReader(new FileReader(inputFile));
-             PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
-            String line;
-            boolean inMacroExpansion = false;
-            int lineNumber = 0;
-            while ((line = br.readLine()) != null) {
-                line = line.trim();
-                lineNumber++;
-                if (line.equalsIgnoreCase("START")) {
-                    writer.println(line);
-                    inMacroExpansion = true;
-                    lineNumber--;
-                } else if (line.equalsIgnoreCase("END")) {
-                    writer.println(line);
-                    inMacroExpansion = false;
-                    lineNumber--;
-                } else if (inMacroExpansion) {
-                    String[] parts = line.split(" ");
-                    String macroName = parts[0];
-                    parts = parts[1].split(",");
-                    System.out.println(Arrays.toString(parts));
-                    MNT mnt = findMNT(macroName);
-                    if (mnt != null) {
-                        List<String> arguments = new ArrayList<>(Arrays.asList(parts).subList(0, parts.length));
-                        aptabList.add(new APTAB(macroName, arguments, lineNumber)); // Add to APTAB
-                        expandMacro(mnt, arguments, writer);
-                    } else {
-                        writer.println(line);
+        try {
+            expandFile(inputFile, outputFile);
+        } catch (IOException e) {
+            System.err.println("Error processing source file: " + e.getMessage());
+        }
+    }
+
+    // processSourceFile for callers that report the failure themselves, e.g. the daemon.
+    // PrintWriter keeps write errors to itself, they are checked once at the end
+    public void expandFile(String inputFile, String outputFile) throws IOException {
+        SourceFile source = SourceFile.open(inputFile);
+        try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
+            processSource(source, writer);
+            if (writer.checkError()) {
+                throw new IOException("Unable to write to file " + outputFile);
+            }
+        }
+    }
+
+    public void processSource(SourceFile source, PrintWriter writer) throws IOException {
+        SourceFile.Line line = source.lines();
+        inMacroExpansion = false;
+        lineNumber = 0;
+        while (line.next()) {
+            processLine(line, writer);
+        }
+    }
+
+    // sp_ass4, the expansion and pass-1 of sp_ass2 in one process, each stage on its own thread.
+    // The tables and the expanded lines are handed over in memory, only the pass-1 output is written
+    public void runPipeline(String definitionFile, String sourceFile, String outputFile) {
+        ExecutorService stages = Executors.newFixedThreadPool(3);
+        BlockingQueue<List<String>> expanded = new ArrayBlockingQueue<>(PIPELINE_QUEUE);
+
+        Future<?> define = stages.submit(() -> {
+            loadTables(definitionFile);
+            return null;
+        });
+        Future<?> expand = stages.submit(() -> {
+            // Closing the writer sends END_OF_SOURCE, also when the tables could not be made
+            try (PrintWriter writer = new PrintWriter(new LineQueueWriter(expanded))) {
+                SourceFile source = SourceFile.open(sourceFile);
+                define.get();
+                processSource(source, writer);
+                return null;
+            }
+        });
+        Future<sp_ass2.Assembler> assemble = stages.submit(() -> {
+            sp_ass2.Assembler assembler = new sp_ass2.Assembler();
+            List<String> batch;
+            while ((batch = expanded.take()) != LineQueueWriter.END_OF_SOURCE) {
+                for (String line : batch) {
+                    assembler.process_line(line.trim());
+                }
+            }
+            return assembler;
+        });
+
+        try {
+            sp_ass2.Assembler assembler = assemble.get();
+            expand.get();
+            assembler.write_output_to_file(outputFile);
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error in macro pipeline: " + e.getMessage());
+        } finally {
+            stages.shutdownNow();
+        }
+    }
+
+    // Writer that passes whole lines to the next pipeline stage, PIPELINE_BATCH lines at a time
+    static class LineQueueWriter extends Writer {
+        static final List<String> END_OF_SOURCE = new ArrayList<>();
+
+        private final BlockingQueue<List<String>> queue;
+        private final StringBuilder line = new StringBuilder();
+        private List<String> batch = new ArrayList<>(PIPELINE_BATCH);
+
+        LineQueueWriter(BlockingQueue<List<String>> queue) {
+            this.queue = queue;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                if (cbuf[i] == '\n') {
+                    int end = line.length();
+                    if (end > 0 && line.charAt(end - 1) == '\r') {
+                        end--;
+                    }
+                    batch.add(line.substring(0, end));
+                    line.setLength(0);
+                    if (batch.size() == PIPELINE_BATCH) {
+                        flush();
                     }
                 } else {
-                    writer.println(line);
+                    line.append(cbuf[i]);
                 }
             }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (!batch.isEmpty()) {
+                put(batch);
+                batch = new ArrayList<>(PIPELINE_BATCH);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (line.length() > 0) {
+                batch.add(line.toString());
+                line.setLength(0);
+            }
+            flush();
+            put(END_OF_SOURCE);
+        }
+
+        private void put(List<String> lines) throws IOException {
+            try {
+                queue.put(lines);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Pipeline stopped");
+            }
+        }
+    }
+
+    // Same output as processSourceFile, the source is cut into chunks that are expanded on separate threads
+    public void processSourceFileParallel(String inputFile, String outputFile, int threads) {
+        if (library != null) {
+            loadAllMacros();
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            SourceFile source = SourceFile.open(inputFile);
+            try (PrintWriter writer = new PrintWriter(new FileWriter(outputFile))) {
+                processChunks(source, writer, pool, threads);
+            }
         } catch (IOException e) {
             System.err.println("Error processing source file: " + e.getMessage());
+        } catch (InterruptedException | ExecutionException e) {
+            System.err.println("Error expanding source file: " + e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    private void processChunks(SourceFile source, PrintWriter writer, ExecutorService pool, int threads)
+            throws InterruptedException, ExecutionException {
+        Deque<Future<Chunk>> pending = new ArrayDeque<>();
+        boolean inMacro = false;
+        int lines = 0;
+        int chunkLines = 0;
+        Chunk chunk = new Chunk(0, inMacro, lines);
+        SourceFile.Line line = source.lines();
+        while (line.next()) {
+            chunkLines++;
+            // Only START and END change the state the next chunk starts in
+            line.trim();
+            if (line.equalsIgnoreCase("START")) {
+                inMacro = true;
+            } else if (line.equalsIgnoreCase("END")) {
+                inMacro = false;
+            } else {
+                lines++;
+            }
+            if (chunkLines == CHUNK_LINES) {
+                Chunk full = chunk;
+                full.to = line.nextStart();
+                pending.add(pool.submit(() -> expandChunk(source, full)));
+                chunk = new Chunk(full.to, inMacro, lines);
+                chunkLines = 0;
+                if (pending.size() > threads * 2) {
+                    writeChunk(pending.poll().get(), writer);
+                }
+            }
+        }
+        if (chunkLines > 0) {
+            Chunk last = chunk;
+            last.to = source.length();
+            pending.add(pool.submit(() -> expandChunk(source, last)));
         }
+        while (!pending.isEmpty()) {
+            writeChunk(pending.poll().get(), writer);
+        }
+    }
+
+    // A new sp_ass5 that only reads this one's macro tables, with its own cache and APTAB.
+    // Call loadAllMacros first when there is a library, so findMNT never writes the directory
+    sp_ass5 newWorker() {
+        sp_ass5 worker = new sp_ass5();
+        worker.macroDirectory = macroDirectory;
+        worker.library = library;
+        worker.maxDepth = maxDepth;
+        worker.expansionCache = new ExpansionCache(expansionCache.maxChars);
+        return worker;
+    }
+
+    // Tables that many threads can expand with at once, through newWorker (see AssemblerDaemon).
+    // tablesFile is a binary library when it ends in .mlb, else the text tables of sp_ass4
+    static sp_ass5 sharedTables(String tablesFile) throws IOException {
+        sp_ass5 tables = new sp_ass5();
+        if (tablesFile.endsWith(".mlb")) {
+            tables.loadLibrary(tablesFile);
+            tables.loadAllMacros();
+        } else {
+            tables.readTables(tablesFile);
+        }
+        return tables;
+    }
+
+    // Runs on a worker: a new sp_ass5 that only reads this one's macro tables
+    private Chunk expandChunk(SourceFile source, Chunk chunk) {
+        sp_ass5 worker = newWorker();
+        worker.inMacroExpansion = chunk.inMacroExpansion;
+        worker.lineNumber = chunk.lineNumber;
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        worker.console = new PrintStream(log);
+        StringWriter output = new StringWriter();
+        try (PrintWriter writer = new PrintWriter(output)) {
+            SourceFile.Line line = source.lines(chunk.from, chunk.to);
+            while (line.next()) {
+                worker.processLine(line, writer);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        worker.console.flush();
+        chunk.output = output.toString();
+        chunk.log = log.toByteArray();
+        chunk.aptabs = worker.aptabList;
+        chunk.cache = worker.expansionCache;
+        return chunk;
+    }
+
+    private void writeChunk(Chunk chunk, PrintWriter writer) {
+        writer.write(chunk.output);
+        console.write(chunk.log, 0, chunk.log.length);
+        aptabList.addAll(chunk.aptabs);
+        expansionCache.addStats(chunk.cache);
+    }
+
+    // The line is read in place, only the macro name and its arguments become Strings
+    private void processLine(SourceFile.Line line, PrintWriter writer) throws IOException {
+        line.trim();
+        lineNumber++;
+        if (line.equalsIgnoreCase("START")) {
+            line.writeTo(writer);
+            writer.println();
+            inMacroExpansion = true;
+            lineNumber--;
+        } else if (line.equalsIgnoreCase("END")) {
+            line.writeTo(writer);
+            writer.println();
+            inMacroExpansion = false;
+            lineNumber--;
+        } else if (inMacroExpansion) {
+            // name, then the text up to the next space split at commas, as line.split(" ")[1].split(",")
+            int space = line.indexOf(' ', 0);
+            String argumentText = space < 0 ? line.toString().split(" ")[1] : line.subSequence(space + 1, tokenEnd(line, space + 1));
+            String macroName = line.subSequence(0, space);
+            String[] parts = argumentText.split(",");
+            console.println(Arrays.toString(parts));
+            MNT mnt = findMNT(macroName);
+            if (mnt != null) {
+                List<String> arguments = new ArrayList<>(Arrays.asList(parts).subList(0, parts.length));
+                APTAB aptab = new APTAB(macroName, arguments, lineNumber);
+                aptabList.add(aptab); // Add to APTAB
+                expandMacro(mnt, aptab, writer);
+            } else {
+                line.writeTo(writer);
+                writer.println();
+            }
+        } else {
+            line.writeTo(writer);
+            writer.println();
+        }
+    }
+
+    private static int tokenEnd(SourceFile.Line line, int from) {
+        int space = line.indexOf(' ', from);
+        return space < 0 ? line.length() : space;
     }
 
     private MNT findMNT(String macroName) {
-        for (MNT mnt : mntList) {
-            if (mnt.name.equals(macroName)) {
-                return mnt;
+        MNT mnt = macroDirectory.get(macroName);
+        if (mnt == null && library != null) {
+            int index = library.find(macroName);
+            if (index >= 0) {
+                mnt = loadMacro(index);
+                macroDirectory.put(macroName, mnt);
             }
         }
-        return null;
+        return mnt;
+    }
+
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = Math.max(maxDepth, 1);
     }
 
-    private void expandMacro(MNT mnt, List<String> arguments, PrintWriter writer) {
-        Map<String, String> argMap = new HashMap<>();
-        List<String> pntab = pntabList.get(mntList.indexOf(mnt));
+    public void setCacheSize(long maxChars) {
+        expansionCache = new ExpansionCache(maxChars);
+    }
+
+    // Expands the call and every macro call in its body up to maxDepth levels, using an explicit
+    // stack of frames so deep or recursive macros cannot overflow the Java stack
+    private void expandMacro(MNT mnt, APTAB aptab, PrintWriter writer) {
+        String[] values = bindArguments(mnt, aptab.arguments);
+        String key = cacheKey(mnt, values, 1);
+        if (key != null) {
+            String cached = expansionCache.get(key);
+            if (cached != null) {
+                writer.write(cached);
+                return;
+            }
+        }
+        StringBuilder out = expansionBuffer;
+        out.setLength(0);
+        Deque<ExpansionFrame> stack = new ArrayDeque<>();
+        stack.push(new ExpansionFrame(aptab, mnt, values, key, 0));
+
+        StringBuilder line = lineBuffer;
+        while (!stack.isEmpty()) {
+            ExpansionFrame frame = stack.peek();
+            if (frame.next == frame.mnt.body.length) {
+                stack.pop();
+                if (frame.key != null) {
+                    expansionCache.put(frame.key, out.substring(frame.outputStart));
+                }
+                continue;
+            }
+            renderTemplate(frame.mnt.body[frame.next++], frame.mnt.pntab, frame.values, line);
+
+            int start = 0;
+            int end = line.length();
+            while (start < end && line.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && line.charAt(end - 1) <= ' ') {
+                end--;
+            }
+
+            if (maxDepth > 1) {
+                String text = line.substring(start, end);
+                String[] parts = text.split(" ");
+                MNT inner = findMNT(parts[0]);
+                if (inner != null) {
+                    if (stack.size() < maxDepth) {
+                        List<String> arguments = parts.length > 1 ? Arrays.asList(parts[1].split(",")) : Collections.emptyList();
+                        pushCall(stack, inner, arguments, frame.aptab, out);
+                        continue;
+                    }
+                    console.println("Macro nesting deeper than " + maxDepth + " at line " + frame.aptab.lineNumber
+                            + ", " + parts[0] + " not expanded");
+                }
+            }
+            out.append(line, start, end).append(System.lineSeparator());
+        }
+        writer.append(out);
+    }
+
+    // Pushes a frame for a call in a macro body, or copies the cached expansion of the same call into out
+    private void pushCall(Deque<ExpansionFrame> stack, MNT mnt, List<String> arguments, APTAB aptab, StringBuilder out) {
+        String[] values = bindArguments(mnt, arguments);
+        String key = cacheKey(mnt, values, stack.size() + 1);
+        if (key != null) {
+            String cached = expansionCache.get(key);
+            if (cached != null) {
+                out.append(cached);
+                return;
+            }
+        }
+        stack.push(new ExpansionFrame(aptab, mnt, values, key, out.length()));
+    }
+
+    // The expansion only depends on these: calls with the same values give the same text. The level
+    // matters because a call deeper down has fewer levels left to expand its own calls
+    private String cacheKey(MNT mnt, String[] values, int level) {
+        if (!expansionCache.enabled()) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(mnt.name).append('\0').append(maxDepth > 1 ? level : 0);
+        for (String value : values) {
+            key.append('\0');
+            if (value == null) {
+                key.append('\1'); // no value, the line keeps (PARAM)
+            } else {
+                key.append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private String[] bindArguments(MNT mnt, List<String> arguments) {
+        List<String> pntab = mnt.pntab;
+        String[] values = new String[pntab.size()];
 
         // Process positional parameters
         for (int i = 0; i < Math.min(mnt.posParams, pntab.size()); i++) {
             if (i < arguments.size()) {
-                if (arguments.get(i).contains("=")) {
-                    argMap.put(pntab.get(i), arguments.get(i).split("=")[1]);
+                String argument = arguments.get(i);
+                if (argument.contains("=")) {
+                    values[mnt.paramSlot[i]] = argument.split("=")[1];
                     continue;
                 }
-                argMap.put(pntab.get(i), arguments.get(i).trim().isEmpty() ? "null" : arguments.get(i).trim());
+                values[mnt.paramSlot[i]] = argument.trim().isEmpty() ? "null" : argument.trim();
             }
         }
 
         // Handle default values for keyword parameters not specified
-        for (int i = mnt.kpdtPtr; i < Math.min(mnt.kpdtPtr + mnt.keyParams, kpdtabList.size()); i++) {
-            KPDTAB kpdtab = kpdtabList.get(i);
-            if (argMap.containsKey(kpdtab.paramName) && argMap.get(kpdtab.paramName).equals("null")) {
-                argMap.put(kpdtab.paramName, kpdtab.defaultValue);
+        for (KPDTAB kpdtab : mnt.keywords) {
+            Integer slot = mnt.paramIndex.get(kpdtab.paramName);
+            if (slot != null && "null".equals(values[slot])) {
+                values[slot] = kpdtab.defaultValue;
             }
         }
+        return values;
+    }
 
-        // Determine the end of this macro's MDT section
-        int mdtEndPtr = mdt.size();
-        int mntIndex = mntList.indexOf(mnt);
-        if (mntIndex < mntList.size() - 1) {
-            mdtEndPtr = mntList.get(mntIndex + 1).mdtPtr;
-        }
-
-        // Expand macro
-        for (int i = mnt.mdtPtr; i < mdtEndPtr; i++) {
-            String instruction = mdt.get(i);
-            
-            // Replace parameters (e.g., P1, P2) with actual values
-            for (Map.Entry<String, String> entry : argMap.entrySet()) {
-                instruction = instruction.replace("(" + entry.getKey() + ")", entry.getValue());
+    // Parameters without a value keep their (PARAM) text
+    private void renderTemplate(MdtTemplate template, List<String> pntab, String[] values, StringBuilder line) {
+        line.setLength(0);
+        line.append(template.text[0]);
+        for (int k = 0; k < template.slots.length; k++) {
+            String value = values[template.slots[k]];
+            if (value != null) {
+                line.append(value);
+            } else {
+                line.append('(').append(pntab.get(template.slots[k])).append(')');
             }
-            
-            writer.println(instruction.trim());
+            line.append(template.text[k + 1]);
         }
     }
 
 
     public static void main(String[] args) {
         sp_ass5 processor = new sp_ass5();
-        processor.readTables("output.txt");
-        processor.processSourceFile("source.txt", "expanded_source.txt");
+        int threads = 0;
+        // --depth N expands macro calls inside macro bodies, up to N levels
+        // --parallel N expands the source on N threads
+        // --cache N keeps up to N chars of expanded calls for repeated calls, 0 turns it off
+        // --pipeline [definitions] [source] [output] runs sp_ass4, the expansion and sp_ass2 pass-1 together
+        while (args.length > 1 && (args[0].equals("--depth") || args[0].equals("--parallel") || args[0].equals("--cache"))) {
+            if (args[0].equals("--depth")) {
+                processor.setMaxDepth(Integer.parseInt(args[1]));
+            } else if (args[0].equals("--cache")) {
+                processor.setCacheSize(Long.parseLong(args[1]));
+            } else {
+                threads = Math.max(Integer.parseInt(args[1]), 1);
+            }
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        if (args.length > 0 && args[0].equals("--pipeline")) {
+            processor.runPipeline(args.length > 1 ? args[1] : "assembly_code_ass4.txt", args.length > 2 ? args[2] : "source.txt",
+                    args.length > 3 ? args[3] : "output_pipeline.txt");
+        } else if (!processor.expandSource(args, threads)) {
+            return;
+        }
         // Print the APTAB entries
         System.out.println("APTAB entries:");
         for (APTAB aptab : processor.aptabList) {
             System.out.println(aptab);
         }
+        if (processor.expansionCache.enabled()) {
+            System.err.println(processor.expansionCache);
+        }
+    }
+
+    // Normal run: tables from output.txt or a --library file, source.txt to expanded_source.txt
+    private boolean expandSource(String[] args, int threads) {
+        // --library reads a binary macro library written by sp_ass4 --binary
+        if (args.length > 0 && args[0].equals("--library")) {
+            try {
+                loadLibrary(args.length > 1 ? args[1] : "output_ass4.mlb");
+            } catch (IOException e) {
+                System.err.println("Error reading macro library: " + e.getMessage());
+                return false;
+            }
+        } else {
+            readTables("output.txt");
+        }
+        if (threads > 0) {
+            processSourceFileParallel("source.txt", "expanded_source.txt", threads);
+        } else {
+            processSourceFile("source.txt", "expanded_source.txt");
+        }
+        return true;
     }
 }